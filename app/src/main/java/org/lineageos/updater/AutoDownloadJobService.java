@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONException;
+import org.lineageos.updater.controller.UpdaterController;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downloads the newest update without the user asking for it, while the device is
+ * idle, charging and on an unmetered network. The job is stopped and the download
+ * paused as soon as that's not the case anymore, the journal of the download lets
+ * the next run go on from there.
+ */
+public class AutoDownloadJobService extends JobService {
+
+    private static final String TAG = "AutoDownloadJobService";
+
+    private static final int JOB_ID = 1;
+
+    private JobParameters mParams;
+    private String mDownloadId;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
+            if (!downloadId.equals(mDownloadId)) {
+                return;
+            }
+            UpdateInfo update = UpdaterController.getInstance(context).getUpdate(downloadId);
+            if (update == null) {
+                finish(false);
+                return;
+            }
+            switch (update.getStatus()) {
+                case PAUSED_ERROR:
+                    Log.d(TAG, "Download of " + downloadId + " failed, retrying later");
+                    finish(true);
+                    break;
+                case PAUSED:
+                case DELETED:
+                    // The user took over
+                case VERIFIED:
+                case VERIFICATION_FAILED:
+                    finish(false);
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    public static boolean isEnabled(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(Constants.PREF_AUTO_DOWNLOAD_UPDATES, false);
+    }
+
+    public static void schedule(Context context) {
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, AutoDownloadJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build();
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        jobScheduler.schedule(jobInfo);
+        Log.d(TAG, "Scheduled automatic download");
+    }
+
+    public static void cancel(Context context) {
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        jobScheduler.cancel(JOB_ID);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (!isEnabled(this)) {
+            return false;
+        }
+        UpdaterController controller = UpdaterController.getInstance(this);
+        UpdateInfo update = findUpdate(controller);
+        if (update == null) {
+            Log.d(TAG, "Nothing to download");
+            return false;
+        }
+        mParams = params;
+        mDownloadId = update.getDownloadId();
+        IntentFilter intentFilter = new IntentFilter(UpdaterController.ACTION_UPDATE_STATUS);
+        LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver, intentFilter);
+        Log.d(TAG, "Downloading " + mDownloadId);
+        if (!controller.startUnattendedDownload(mDownloadId)) {
+            finish(false);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (mDownloadId == null) {
+            return false;
+        }
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mReceiver);
+        Log.d(TAG, "Constraints no longer met, pausing " + mDownloadId);
+        UpdaterController.getInstance(this).pauseDownload(mDownloadId);
+        mDownloadId = null;
+        return true;
+    }
+
+    private void finish(boolean reschedule) {
+        if (mDownloadId == null) {
+            return;
+        }
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mReceiver);
+        mDownloadId = null;
+        jobFinished(mParams, reschedule);
+    }
+
+    /**
+     * @return the newest update that can be installed and isn't downloaded yet
+     */
+    private UpdateInfo findUpdate(UpdaterController controller) {
+        // The list might have been refreshed while the app wasn't running
+        File json = Utils.getCachedUpdateList(this);
+        if (json.exists()) {
+            try {
+                List<String> updatesOnline = new ArrayList<>();
+                for (UpdateInfo update : Utils.parseJson(json, true)) {
+                    controller.addUpdate(update);
+                    updatesOnline.add(update.getDownloadId());
+                }
+                controller.setUpdatesAvailableOnline(updatesOnline, true);
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Could not read the updates list", e);
+            }
+        }
+        UpdateInfo newest = null;
+        for (UpdateInfo update : controller.getUpdates()) {
+            if (!update.getAvailableOnline() || !Utils.canInstall(update) ||
+                    (newest != null && newest.getTimestamp() >= update.getTimestamp())) {
+                continue;
+            }
+            newest = update;
+        }
+        if (newest == null || controller.isDownloading(newest.getDownloadId())) {
+            return null;
+        }
+        switch (newest.getStatus()) {
+            case UNKNOWN:
+            case PAUSED:
+            case PAUSED_ERROR:
+                return newest;
+            default:
+                return null;
+        }
+    }
+}
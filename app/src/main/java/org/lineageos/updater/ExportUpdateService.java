@@ -30,6 +30,7 @@ import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
 
 import org.lineageos.updater.misc.FileUtils;
+import org.lineageos.updater.misc.TaskExecutors;
 
 import java.io.File;
 import java.io.IOException;
@@ -51,8 +52,6 @@ public class ExportUpdateService extends Service {
 
     private volatile boolean mIsExporting = false;
 
-    private Thread mExportThread;
-
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -106,7 +105,7 @@ public class ExportUpdateService extends Service {
             try {
                 FileUtils.copyFile(mContentResolver, mSource, mDestination, mProgressCallBack);
                 mIsExporting = false;
-                if (!mExportThread.isInterrupted()) {
+                if (!Thread.currentThread().isInterrupted()) {
                     Log.d(TAG, "Completed");
                     mRunnableComplete.run();
                 } else {
@@ -187,7 +186,6 @@ public class ExportUpdateService extends Service {
 
         ExportRunnable exportRunnable = new ExportRunnable(getContentResolver(), source,
                 destination, progressCallBack, runnableComplete, runnableFailed);
-        mExportThread = new Thread(exportRunnable);
-        mExportThread.start();
+        TaskExecutors.submit(TaskExecutors.Pool.COPY, "export " + fileName, exportRunnable);
     }
 }
@@ -21,12 +21,15 @@ import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.system.StructStat;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.lineageos.updater.controller.UpdaterController;
 import org.lineageos.updater.controller.UpdaterService;
+import org.lineageos.updater.download.PartialZipFile;
 import org.lineageos.updater.misc.StringGenerator;
+import org.lineageos.updater.misc.TaskExecutors;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateInfo;
@@ -34,39 +37,35 @@ import org.lineageos.updater.model.UpdateStatus;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
 import java.text.DateFormat;
-import java.util.Enumeration;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.Future;
 
 public class UpdateImporter {
     private static final int REQUEST_PICK = 9061;
     private static final String TAG = "UpdateImporter";
     private static final String MIME_ZIP = "application/zip";
     private static final String FILE_NAME = "localUpdate.zip";
-    private static final String METADATA_PATH = "META-INF/com/android/metadata";
-    private static final String METADATA_TIMESTAMP_KEY = "post-timestamp=";
+    private static final String METADATA_TIMESTAMP_KEY = "post-timestamp";
 
     private final Activity activity;
     private final Callbacks callbacks;
 
-    private Thread workingThread;
+    private Future<?> workingTask;
 
     public UpdateImporter(Activity activity, Callbacks callbacks) {
         this.activity = activity;
         this.callbacks = callbacks;
     }
 
-    public void stopImport() {
-        if (workingThread != null && workingThread.isAlive()) {
-            workingThread.interrupt();
-            workingThread = null;
+    public synchronized void stopImport() {
+        if (workingTask != null && !workingTask.isDone()) {
+            workingTask.cancel(true);
+            workingTask = null;
         }
     }
 
@@ -85,36 +84,57 @@ public class UpdateImporter {
         return onPicked(data.getData());
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private boolean onPicked(Uri uri) {
+    private synchronized boolean onPicked(Uri uri) {
         callbacks.onImportStarted();
 
-        workingThread = new Thread(() -> {
+        workingTask = TaskExecutors.submit(TaskExecutors.Pool.COPY, "import", () -> {
             File importedFile = null;
             try {
-                importedFile = importFile(uri);
-                verifyPackage(importedFile);
-
-                final Update update = buildLocalUpdate(importedFile);
-                addUpdate(update);
-                activity.runOnUiThread(() -> callbacks.onImportCompleted(update));
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to import update package", e);
-                // Do not store invalid update
-                if (importedFile != null) {
-                    importedFile.delete();
+                final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                importedFile = importFile(uri, digest);
+                final File file = importedFile;
+                final String packageDigest = "SHA-256:" + Utils.toHex(digest.digest());
+                // The signature check is CPU bound, don't hold up the other copies
+                synchronized (this) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Import cancelled");
+                    }
+                    workingTask = TaskExecutors.submit(TaskExecutors.Pool.CPU,
+                            "verify import", () -> verifyImport(file, packageDigest));
                 }
-
-                activity.runOnUiThread(() -> callbacks.onImportCompleted(null));
+            } catch (Exception e) {
+                onImportFailed(importedFile, e);
             }
         });
-        workingThread.start();
         return true;
     }
 
+    private void verifyImport(File file, String digest) {
+        try {
+            verifyPackage(file, digest);
+
+            final Update update = buildLocalUpdate(file);
+            addUpdate(update);
+            activity.runOnUiThread(() -> callbacks.onImportCompleted(update));
+        } catch (Exception e) {
+            onImportFailed(file, e);
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void onImportFailed(File importedFile, Exception e) {
+        Log.e(TAG, "Failed to import update package", e);
+        // Do not store invalid update
+        if (importedFile != null) {
+            importedFile.delete();
+        }
+
+        activity.runOnUiThread(() -> callbacks.onImportCompleted(null));
+    }
+
     @SuppressLint("SetWorldReadable")
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private File importFile(Uri uri) throws IOException {
+    private File importFile(Uri uri, MessageDigest digest) throws IOException {
         final ParcelFileDescriptor parcelDescriptor = activity.getContentResolver()
                 .openFileDescriptor(uri, "r");
         if (parcelDescriptor == null) {
@@ -134,6 +154,7 @@ public class UpdateImporter {
         final byte[] buffer = new byte[4096];
         while ((read = iStream.read(buffer)) > 0) {
             oStream.write(buffer, 0, read);
+            digest.update(buffer, 0, read);
         }
         oStream.flush();
         oStream.close();
@@ -164,10 +185,18 @@ public class UpdateImporter {
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void verifyPackage(File file) throws Exception {
+    private void verifyPackage(File file, String digest) throws Exception {
+        final UpdatesDbHelper dbHelper = new UpdatesDbHelper(activity);
+        // The same package might have been imported before
+        if (dbHelper.isDigestVerified(file, digest)) {
+            Log.d(TAG, "The package was already verified");
+            return;
+        }
+        final StructStat stat = UpdatesDbHelper.stat(file);
         try {
             android.os.RecoverySystem.verifyPackage(file, null, null);
         } catch (Exception e) {
+            dbHelper.removeVerifiedPackage(file);
             if (file.exists()) {
                 file.delete();
                 throw new Exception("Verification failed, file has been deleted");
@@ -175,6 +204,7 @@ public class UpdateImporter {
                 throw e;
             }
         }
+        dbHelper.addVerifiedPackage(file, stat, digest);
     }
 
     private void addUpdate(Update update) {
@@ -184,14 +214,9 @@ public class UpdateImporter {
 
     private long getTimeStamp(File file) {
         try {
-            final String metadataContent = readZippedFile(file, METADATA_PATH);
-            final String[] lines = metadataContent.split("\n");
-            for (String line : lines) {
-                if (!line.startsWith(METADATA_TIMESTAMP_KEY)) {
-                    continue;
-                }
-
-                final String timeStampStr = line.replace(METADATA_TIMESTAMP_KEY, "");
+            final String timeStampStr = new PartialZipFile(file).getMetadata()
+                    .get(METADATA_TIMESTAMP_KEY);
+            if (timeStampStr != null) {
                 return Long.parseLong(timeStampStr);
             }
         } catch (IOException e) {
@@ -204,43 +229,6 @@ public class UpdateImporter {
         return System.currentTimeMillis();
     }
 
-    private String readZippedFile(File file, String path) throws IOException {
-        final StringBuilder sb = new StringBuilder();
-        InputStream iStream = null;
-
-        try (final ZipFile zip = new ZipFile(file)) {
-            final Enumeration<? extends ZipEntry> iterator = zip.entries();
-            while (iterator.hasMoreElements()) {
-                final ZipEntry entry = iterator.nextElement();
-                if (!METADATA_PATH.equals(entry.getName())) {
-                    continue;
-                }
-
-                iStream = zip.getInputStream(entry);
-                break;
-            }
-
-            if (iStream == null) {
-                throw new FileNotFoundException("Couldn't find " + path + " in " + file.getName());
-            }
-
-            final byte[] buffer = new byte[1024];
-            int read;
-            while ((read = iStream.read(buffer)) > 0) {
-                sb.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to read file from zip package", e);
-            throw e;
-        } finally {
-            if (iStream != null) {
-                iStream.close();
-            }
-        }
-
-        return sb.toString();
-    }
-
     public interface Callbacks {
         void onImportStarted();
 
@@ -141,7 +141,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                     handleDownloadStatusChange(downloadId);
                     mAdapter.notifyItemChanged(downloadId);
                 } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction()) ||
-                        UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
+                        UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction()) ||
+                        UpdaterController.ACTION_VERIFY_PROGRESS.equals(intent.getAction())) {
                     String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
                     mAdapter.notifyItemChanged(downloadId);
                 } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
@@ -239,6 +240,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
         intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
+        intentFilter.addAction(UpdaterController.ACTION_VERIFY_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
     }
@@ -258,6 +260,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
     public void onStop() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
         if (mUpdaterService != null) {
+            mUpdaterService.getUpdaterController().setForeground(false);
             unbindService(mConnection);
         }
         super.onStop();
@@ -356,6 +359,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             mUpdaterService = binder.getService();
             mAdapter.setUpdaterController(mUpdaterService.getUpdaterController());
+            mUpdaterService.getUpdaterController().setForeground(true);
             getUpdatesList();
         }
 
@@ -418,7 +422,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         }
     }
 
-    private void processNewJson(File json, File jsonNew, boolean manualRefresh) {
+    private boolean processNewJson(File json, File jsonNew, boolean manualRefresh) {
         try {
             loadUpdatesList(jsonNew, manualRefresh);
             SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
@@ -433,19 +437,36 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             UpdatesCheckReceiver.cancelUpdatesCheck(this);
             //noinspection ResultOfMethodCallIgnored
             jsonNew.renameTo(json);
+            return true;
         } catch (IOException | JSONException e) {
             Log.e(TAG, "Could not read json", e);
             showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
+            return false;
+        }
+    }
+
+    private void processUnchangedJson(boolean manualRefresh) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        long millis = System.currentTimeMillis();
+        preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
+        updateLastCheckedString();
+        // In case we set a one-shot check because of a previous failure
+        UpdatesCheckReceiver.cancelUpdatesCheck(this);
+        if (manualRefresh) {
+            showSnackbar(R.string.snack_no_updates_found, Snackbar.LENGTH_SHORT);
         }
     }
 
     private void downloadUpdatesList(final boolean manualRefresh) {
         final File jsonFile = Utils.getCachedUpdateList(this);
         final File jsonFileTmp = new File(jsonFile.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL(this);
+        final String url = Utils.getServerURL(this);
         Log.d(TAG, "Checking " + url);
 
         DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+            private String mETag;
+            private String mLastModified;
+
             @Override
             public void onFailure(final boolean cancelled) {
                 Log.e(TAG, "Could not download updates list");
@@ -459,13 +480,27 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
 
             @Override
             public void onResponse(DownloadClient.Headers headers) {
+                mETag = headers.get("ETag");
+                mLastModified = headers.get("Last-Modified");
             }
 
             @Override
             public void onSuccess() {
                 runOnUiThread(() -> {
                     Log.d(TAG, "List downloaded");
-                    processNewJson(jsonFile, jsonFileTmp, manualRefresh);
+                    if (processNewJson(jsonFile, jsonFileTmp, manualRefresh)) {
+                        Utils.setUpdateListValidators(UpdatesActivity.this, url, mETag,
+                                mLastModified);
+                    }
+                    refreshAnimationStop();
+                });
+            }
+
+            @Override
+            public void onNotModified() {
+                runOnUiThread(() -> {
+                    Log.d(TAG, "List didn't change");
+                    processUnchangedJson(manualRefresh);
                     refreshAnimationStop();
                 });
             }
@@ -477,6 +512,9 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                     .setUrl(url)
                     .setDestination(jsonFileTmp)
                     .setDownloadCallback(callback)
+                    .setIfNoneMatch(Utils.getUpdateListETag(this, url))
+                    .setIfModifiedSince(Utils.getUpdateListLastModified(this, url))
+                    .setUseCompression(true)
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -581,6 +619,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         View view = LayoutInflater.from(this).inflate(R.layout.preferences_dialog, null);
         Spinner autoCheckInterval = view.findViewById(R.id.preferences_auto_updates_check_interval);
         SwitchCompat autoDelete = view.findViewById(R.id.preferences_auto_delete_updates);
+        SwitchCompat autoDownload = view.findViewById(R.id.preferences_auto_download_updates);
         SwitchCompat meteredNetworkWarning = view.findViewById(
                 R.id.preferences_metered_network_warning);
         SwitchCompat abPerfMode = view.findViewById(R.id.preferences_ab_perf_mode);
@@ -593,6 +632,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         autoCheckInterval.setSelection(Utils.getUpdateCheckSetting(this));
         autoDelete.setChecked(prefs.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false));
+        autoDownload.setChecked(AutoDownloadJobService.isEnabled(this));
         meteredNetworkWarning.setChecked(prefs.getBoolean(Constants.PREF_METERED_NETWORK_WARNING,
                 prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true)));
         abPerfMode.setChecked(prefs.getBoolean(Constants.PREF_AB_PERF_MODE, false));
@@ -633,6 +673,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                             .putInt(Constants.PREF_AUTO_UPDATES_CHECK_INTERVAL,
                                     autoCheckInterval.getSelectedItemPosition())
                             .putBoolean(Constants.PREF_AUTO_DELETE_UPDATES, autoDelete.isChecked())
+                            .putBoolean(Constants.PREF_AUTO_DOWNLOAD_UPDATES,
+                                    autoDownload.isChecked())
                             .putBoolean(Constants.PREF_METERED_NETWORK_WARNING,
                                     meteredNetworkWarning.isChecked())
                             .putBoolean(Constants.PREF_AB_PERF_MODE, abPerfMode.isChecked())
@@ -645,6 +687,12 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                         UpdatesCheckReceiver.cancelUpdatesCheck(this);
                     }
 
+                    if (autoDownload.isChecked()) {
+                        AutoDownloadJobService.schedule(this);
+                    } else {
+                        AutoDownloadJobService.cancel(this);
+                    }
+
                     if (Utils.isABDevice()) {
                         boolean enableABPerfMode = abPerfMode.isChecked();
                         mUpdaterService.getUpdaterController().setPerformanceMode(enableABPerfMode);
@@ -75,8 +75,11 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
 
         final File json = Utils.getCachedUpdateList(context);
         final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL(context);
+        final String url = Utils.getServerURL(context);
         DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+            private String mETag;
+            private String mLastModified;
+
             @Override
             public void onFailure(boolean cancelled) {
                 Log.e(TAG, "Could not download updates list, scheduling new check");
@@ -85,6 +88,8 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
 
             @Override
             public void onResponse(DownloadClient.Headers headers) {
+                mETag = headers.get("ETag");
+                mLastModified = headers.get("Last-Modified");
             }
 
             @Override
@@ -93,9 +98,14 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
                     if (json.exists() && Utils.checkForNewUpdates(json, jsonNew)) {
                         showNotification(context);
                         updateRepeatingUpdatesCheck(context);
+                        if (AutoDownloadJobService.isEnabled(context)) {
+                            // Only runs once idle, the list is in place by then
+                            AutoDownloadJobService.schedule(context);
+                        }
                     }
                     //noinspection ResultOfMethodCallIgnored
                     jsonNew.renameTo(json);
+                    Utils.setUpdateListValidators(context, url, mETag, mLastModified);
                     long currentMillis = System.currentTimeMillis();
                     preferences.edit()
                             .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
@@ -107,6 +117,16 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
                     scheduleUpdatesCheck(context);
                 }
             }
+
+            @Override
+            public void onNotModified() {
+                Log.d(TAG, "List didn't change");
+                preferences.edit()
+                        .putLong(Constants.PREF_LAST_UPDATE_CHECK, System.currentTimeMillis())
+                        .apply();
+                // In case we set a one-shot check because of a previous failure
+                cancelUpdatesCheck(context);
+            }
         };
 
         try {
@@ -114,6 +134,9 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
                     .setUrl(url)
                     .setDestination(jsonNew)
                     .setDownloadCallback(callback)
+                    .setIfNoneMatch(Utils.getUpdateListETag(context, url))
+                    .setIfModifiedSince(Utils.getUpdateListLastModified(context, url))
+                    .setUseCompression(true)
                     .build();
             downloadClient.start();
         } catch (IOException e) {
@@ -20,8 +20,15 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemProperties;
 import android.provider.BaseColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.system.StructTimespec;
+import android.util.Log;
 
+import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.model.Update;
 
 import java.io.File;
@@ -30,7 +37,9 @@ import java.util.List;
 
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    private static final String TAG = "UpdatesDbHelper";
+
+    public static final int DATABASE_VERSION = 4;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -42,6 +51,22 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_TYPE = "type";
         public static final String COLUMN_NAME_VERSION = "version";
         public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_SOURCE_TIMESTAMP = "source_timestamp";
+        public static final String COLUMN_NAME_SHA256 = "sha256";
+    }
+
+    /**
+     * Packages that passed the signature check, as they were when they did.
+     */
+    public static class VerificationEntry implements BaseColumns {
+        public static final String TABLE_NAME = "verifications";
+        public static final String COLUMN_NAME_PATH = "path";
+        public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_MTIME = "mtime";
+        public static final String COLUMN_NAME_CTIME = "ctime";
+        public static final String COLUMN_NAME_INODE = "inode";
+        public static final String COLUMN_NAME_DIGEST = "digest";
+        public static final String COLUMN_NAME_BUILD_DATE = "build_date";
     }
 
     private static final String SQL_CREATE_ENTRIES =
@@ -53,26 +78,66 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_TYPE + " TEXT," +
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
-                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
+                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_SOURCE_TIMESTAMP + " INTEGER DEFAULT 0," +
+                    UpdateEntry.COLUMN_NAME_SHA256 + " TEXT)";
+
+    private static final String SQL_CREATE_VERIFICATIONS =
+            "CREATE TABLE " + VerificationEntry.TABLE_NAME + " (" +
+                    VerificationEntry._ID + " INTEGER PRIMARY KEY," +
+                    VerificationEntry.COLUMN_NAME_PATH + " TEXT NOT NULL UNIQUE," +
+                    VerificationEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_MTIME + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_CTIME + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_INODE + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_DIGEST + " TEXT," +
+                    VerificationEntry.COLUMN_NAME_BUILD_DATE + " INTEGER)";
+
+    private static final String SQL_ADD_SOURCE_TIMESTAMP =
+            "ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_SOURCE_TIMESTAMP + " INTEGER DEFAULT 0";
+
+    private static final String SQL_ADD_SHA256 =
+            "ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_SHA256 + " TEXT";
 
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
 
+    private static final String SQL_DELETE_VERIFICATIONS =
+            "DROP TABLE IF EXISTS " + VerificationEntry.TABLE_NAME;
+
     public UpdatesDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_VERIFICATIONS);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion <= 3) {
+            if (oldVersion == 1) {
+                // Keep the downloads made before, they're all full packages
+                db.execSQL(SQL_ADD_SOURCE_TIMESTAMP);
+            }
+            if (oldVersion <= 2) {
+                // Their digest will be checked against the MD5 instead
+                db.execSQL(SQL_ADD_SHA256);
+            }
+            db.execSQL(SQL_CREATE_VERIFICATIONS);
+            return;
+        }
         db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_VERIFICATIONS);
         onCreate(db);
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_VERIFICATIONS);
+        onCreate(db);
     }
 
     public void addUpdateWithOnConflict(Update update, int conflictAlgorithm) {
@@ -90,6 +155,8 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         values.put(UpdateEntry.COLUMN_NAME_TYPE, update.getType());
         values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
+        values.put(UpdateEntry.COLUMN_NAME_SOURCE_TIMESTAMP, update.getSourceTimestamp());
+        values.put(UpdateEntry.COLUMN_NAME_SHA256, update.getSha256());
     }
 
     public void removeUpdate(String downloadId) {
@@ -113,6 +180,125 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs);
     }
 
+    /**
+     * @return the identity of the file, null if it can't be read
+     */
+    public static StructStat stat(File file) {
+        try {
+            return Os.stat(file.getAbsolutePath());
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Could not stat " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the file isn't the one stat was taken from anymore, as far as
+     * isPackageVerified() can tell
+     */
+    public static boolean hasChanged(File file, StructStat stat) {
+        StructStat current = stat(file);
+        return stat == null || current == null || stat.st_ino != current.st_ino ||
+                stat.st_size != current.st_size || !stat.st_mtim.equals(current.st_mtim) ||
+                !stat.st_ctim.equals(current.st_ctim);
+    }
+
+    private static long toNanos(StructTimespec time) {
+        return time.tv_sec * 1000000000L + time.tv_nsec;
+    }
+
+    /**
+     * Remember that the file passed the signature check. Nothing is stored if the file
+     * changed since stat was taken, which must have been before checking it.
+     *
+     * @param digest the digest of the file prefixed by its algorithm, as in SHA-256:...
+     */
+    public void addVerifiedPackage(File file, StructStat stat, String digest) {
+        if (hasChanged(file, stat)) {
+            Log.w(TAG, file + " changed while it was verified");
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(VerificationEntry.COLUMN_NAME_PATH, file.getAbsolutePath());
+        values.put(VerificationEntry.COLUMN_NAME_SIZE, stat.st_size);
+        values.put(VerificationEntry.COLUMN_NAME_MTIME, toNanos(stat.st_mtim));
+        values.put(VerificationEntry.COLUMN_NAME_CTIME, toNanos(stat.st_ctim));
+        values.put(VerificationEntry.COLUMN_NAME_INODE, stat.st_ino);
+        values.put(VerificationEntry.COLUMN_NAME_DIGEST, digest);
+        values.put(VerificationEntry.COLUMN_NAME_BUILD_DATE, getBuildDate());
+        db.insertWithOnConflict(VerificationEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * The change time is part of the identity of the file since, unlike the
+     * modification time, it can't be set back after changing the file.
+     *
+     * @return whether the file passed the signature check as it is now
+     */
+    public boolean isPackageVerified(File file, String digest) {
+        StructStat stat = stat(file);
+        if (stat == null) {
+            return false;
+        }
+        String selection = VerificationEntry.COLUMN_NAME_PATH + " = ? AND " +
+                VerificationEntry.COLUMN_NAME_SIZE + " = ? AND " +
+                VerificationEntry.COLUMN_NAME_MTIME + " = ? AND " +
+                VerificationEntry.COLUMN_NAME_CTIME + " = ? AND " +
+                VerificationEntry.COLUMN_NAME_INODE + " = ?";
+        String[] selectionArgs = {
+                file.getAbsolutePath(),
+                String.valueOf(stat.st_size),
+                String.valueOf(toNanos(stat.st_mtim)),
+                String.valueOf(toNanos(stat.st_ctim)),
+                String.valueOf(stat.st_ino),
+        };
+        return isVerified(selection, selectionArgs, digest);
+    }
+
+    /**
+     * Like isPackageVerified(), for files whose digest was just computed over their
+     * content, which makes their identity irrelevant. The digest must be one that
+     * can't be forged, such as SHA-256.
+     */
+    public boolean isDigestVerified(File file, String digest) {
+        String selection = VerificationEntry.COLUMN_NAME_PATH + " = ?";
+        String[] selectionArgs = {file.getAbsolutePath()};
+        return isVerified(selection, selectionArgs, digest);
+    }
+
+    private boolean isVerified(String selection, String[] selectionArgs, String digest) {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {
+                VerificationEntry.COLUMN_NAME_DIGEST,
+                VerificationEntry.COLUMN_NAME_BUILD_DATE,
+        };
+        boolean verified = false;
+        try (Cursor cursor = db.query(VerificationEntry.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, null)) {
+            if (cursor.moveToFirst()) {
+                int index = cursor.getColumnIndex(VerificationEntry.COLUMN_NAME_DIGEST);
+                verified = digest.equals(cursor.getString(index));
+                index = cursor.getColumnIndex(VerificationEntry.COLUMN_NAME_BUILD_DATE);
+                // The trusted keys come with the build
+                verified &= cursor.getLong(index) == getBuildDate();
+            }
+        }
+        return verified;
+    }
+
+    public void removeVerifiedPackage(File file) {
+        SQLiteDatabase db = getWritableDatabase();
+        String selection = VerificationEntry.COLUMN_NAME_PATH + " = ?";
+        String[] selectionArgs = {file.getAbsolutePath()};
+        db.delete(VerificationEntry.TABLE_NAME, selection, selectionArgs);
+    }
+
+    private static long getBuildDate() {
+        return SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+    }
+
     public List<Update> getUpdates() {
         return getUpdates(null, null);
     }
@@ -127,6 +313,8 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 UpdateEntry.COLUMN_NAME_VERSION,
                 UpdateEntry.COLUMN_NAME_STATUS,
                 UpdateEntry.COLUMN_NAME_SIZE,
+                UpdateEntry.COLUMN_NAME_SOURCE_TIMESTAMP,
+                UpdateEntry.COLUMN_NAME_SHA256,
         };
         String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
         Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
@@ -150,6 +338,10 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 update.setPersistentStatus(cursor.getInt(index));
                 index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
                 update.setFileSize(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SOURCE_TIMESTAMP);
+                update.setSourceTimestamp(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SHA256);
+                update.setSha256(cursor.getString(index));
                 updates.add(update);
             }
             cursor.close();
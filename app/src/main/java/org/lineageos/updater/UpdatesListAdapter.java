@@ -169,7 +169,8 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             viewHolder.mPercentage.setText(percentage);
             long eta = update.getEta();
             if (eta > 0) {
-                CharSequence etaString = StringGenerator.formatETA(mActivity, eta * 1000);
+                CharSequence etaString = StringGenerator.formatETA(mActivity, eta * 1000,
+                        update.getMinEta() * 1000, update.getMaxEta() * 1000);
                 viewHolder.mProgressText.setText(mActivity.getString(
                         R.string.list_download_progress_eta_newer, downloaded, total, etaString));
             } else {
@@ -192,9 +193,13 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             viewHolder.mProgressBar.setIndeterminate(false);
             viewHolder.mProgressBar.setProgress(update.getInstallProgress());
         } else if (mUpdaterController.isVerifyingUpdate(downloadId)) {
-            setButtonAction(viewHolder.mAction, Action.INSTALL, downloadId, false);
+            setButtonAction(viewHolder.mAction, Action.PAUSE, downloadId, true);
             viewHolder.mProgressText.setText(R.string.list_verifying_update);
-            viewHolder.mProgressBar.setIndeterminate(true);
+            String percentage = NumberFormat.getPercentInstance().format(
+                    update.getVerifyProgress() / 100.f);
+            viewHolder.mPercentage.setText(percentage);
+            viewHolder.mProgressBar.setIndeterminate(false);
+            viewHolder.mProgressBar.setProgress(update.getVerifyProgress());
         } else {
             canDelete = true;
             setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy());
@@ -262,7 +267,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         boolean activeLayout;
         switch (update.getPersistentStatus()) {
             case UpdateStatus.Persistent.UNKNOWN:
-                activeLayout = update.getStatus() == UpdateStatus.STARTING;
+                // Streamed updates are installed without being downloaded
+                activeLayout = update.getStatus() == UpdateStatus.STARTING ||
+                        update.getStatus() == UpdateStatus.INSTALLING;
                 break;
             case UpdateStatus.Persistent.VERIFIED:
                 activeLayout = update.getStatus() == UpdateStatus.INSTALLING;
@@ -504,6 +511,34 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 .setNegativeButton(android.R.string.cancel, null);
     }
 
+    private AlertDialog.Builder getStreamDialog(final String downloadId) {
+        if (!isBatteryLevelOk()) {
+            Resources resources = mActivity.getResources();
+            String message = resources.getString(R.string.dialog_battery_low_message_pct,
+                    resources.getInteger(R.integer.battery_ok_percentage_discharging),
+                    resources.getInteger(R.integer.battery_ok_percentage_charging));
+            return new AlertDialog.Builder(mActivity)
+                    .setTitle(R.string.dialog_battery_low_title)
+                    .setMessage(message)
+                    .setPositiveButton(android.R.string.ok, null);
+        }
+        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+        String buildDate = StringGenerator.getDateLocalizedUTC(mActivity,
+                DateFormat.MEDIUM, update.getTimestamp());
+        String buildInfoText = mActivity.getString(R.string.list_build_version_date,
+                update.getVersion(), buildDate);
+        return new AlertDialog.Builder(mActivity)
+                .setTitle(R.string.apply_update_dialog_title)
+                .setMessage(mActivity.getString(R.string.stream_update_dialog_message,
+                        buildInfoText, mActivity.getString(android.R.string.ok)))
+                .setPositiveButton(android.R.string.ok,
+                        (dialog, which) -> {
+                            Utils.triggerStreamingUpdate(mActivity, downloadId);
+                            maybeShowInfoDialog();
+                        })
+                .setNegativeButton(android.R.string.cancel, null);
+    }
+
     private AlertDialog.Builder getCancelInstallationDialog() {
         return new AlertDialog.Builder(mActivity)
                 .setMessage(R.string.cancel_installation_dialog_message)
@@ -550,6 +585,10 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         menu.findItem(R.id.menu_delete_action).setVisible(shouldShowDelete);
         menu.findItem(R.id.menu_copy_url).setVisible(update.getAvailableOnline());
         menu.findItem(R.id.menu_export_update).setVisible(isVerified);
+        menu.findItem(R.id.menu_stream_update).setVisible(Utils.isABDevice() &&
+                update.getAvailableOnline() && Utils.canInstall(update) &&
+                update.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN &&
+                !isBusy());
 
         popupMenu.setOnMenuItemClickListener(item -> {
             int itemId = item.getItemId();
@@ -567,6 +606,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                     mActivity.exportUpdate(update);
                 }
                 return true;
+            } else if (itemId == R.id.menu_stream_update) {
+                getStreamDialog(update.getDownloadId()).show();
+                return true;
             }
             return false;
         });
@@ -24,20 +24,15 @@ import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import org.lineageos.updater.download.PartialZipFile;
 import org.lineageos.updater.misc.Constants;
-import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.misc.TaskExecutors;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateStatus;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.Future;
 
 class ABUpdateInstaller {
 
@@ -54,6 +49,8 @@ class ABUpdateInstaller {
 
     private final UpdateEngine mUpdateEngine;
     private boolean mBound;
+    // Looking for the payload of the update being streamed, guarded by this
+    private Future<?> mLocateTask;
 
     private boolean mFinalizing;
     private int mProgress;
@@ -171,24 +168,10 @@ class ABUpdateInstaller {
             return;
         }
 
-        long offset;
-        String[] headerKeyValuePairs;
+        Payload payload;
         try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null;) {
-                    lines.add(line);
-                }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
-            }
-            zipFile.close();
-        } catch (IOException | IllegalArgumentException e) {
+            payload = new Payload(new PartialZipFile(file));
+        } catch (IOException e) {
             Log.e(TAG, "Could not prepare " + file, e);
             mUpdaterController.getActualUpdate(mDownloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
@@ -196,10 +179,116 @@ class ABUpdateInstaller {
             return;
         }
 
+        String zipFileUri = "file://" + file.getAbsolutePath();
+        applyPayload(zipFileUri, payload, downloadId);
+    }
+
+    /**
+     * Install the given update without downloading it first. The payload is located
+     * in the zip on the server with a few range requests, then update_engine fetches
+     * and applies it directly from there.
+     */
+    public void stream(String downloadId) {
+        if (isInstallingUpdate(mContext)) {
+            Log.e(TAG, "Already installing an update");
+            return;
+        }
+
+        mDownloadId = downloadId;
+
+        Update update = mUpdaterController.getActualUpdate(downloadId);
+        update.setStatus(UpdateStatus.INSTALLING);
+        update.setInstallProgress(0);
+        mUpdaterController.notifyUpdateChange(downloadId);
+        // Considered installing already, so that it can be cancelled while we look for
+        // the payload
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(PREF_INSTALLING_AB_ID, downloadId)
+                .apply();
+
+        final String url = update.getDownloadUrl();
+        synchronized (this) {
+            mLocateTask = TaskExecutors.submit(TaskExecutors.Pool.NETWORK,
+                    TaskExecutors.Priority.HIGH, "locate payload " + downloadId,
+                    () -> locatePayload(url, downloadId));
+        }
+    }
+
+    private void locatePayload(String url, String downloadId) {
+        PartialZipFile zipFile = null;
+        Payload payload = null;
+        IOException error = null;
+        try {
+            zipFile = openRemoteZipFile(url);
+            payload = new Payload(zipFile);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            if (mLocateTask == null) {
+                Log.d(TAG, "Installation of " + downloadId + " cancelled");
+                return;
+            }
+            mLocateTask = null;
+            if (error != null) {
+                Log.e(TAG, "Could not locate the payload of " + downloadId, error);
+                installationDone(false);
+                mUpdaterController.getActualUpdate(downloadId)
+                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                mUpdaterController.notifyUpdateChange(downloadId);
+                return;
+            }
+            Log.d(TAG, "Streaming " + payload.mSize + " bytes at " + payload.mOffset +
+                    " of " + zipFile.getUrl());
+            applyPayload(zipFile.getUrl(), payload, downloadId);
+        }
+    }
+
+    /**
+     * Where the payload is in an OTA package and what update_engine needs to know
+     * about it.
+     */
+    private static final class Payload {
+        private final long mOffset;
+        private final long mSize;
+        private final String[] mHeaderKeyValuePairs;
+
+        private Payload(PartialZipFile zipFile) throws IOException {
+            PartialZipFile.Entry payloadEntry = zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+            if (payloadEntry == null) {
+                throw new IOException("Not an A/B update");
+            } else if (payloadEntry.getMethod() != PartialZipFile.STORED) {
+                // update_engine reads the payload as is
+                throw new IOException("The payload is compressed");
+            }
+            mOffset = zipFile.getDataOffset(payloadEntry);
+            mSize = payloadEntry.getSize();
+            mHeaderKeyValuePairs = zipFile.readLines(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+        }
+    }
+
+    /**
+     * update_engine refuses to fetch payloads over plain http on user builds, so try
+     * the https version of the url first.
+     */
+    private static PartialZipFile openRemoteZipFile(String url) throws IOException {
+        if (url.startsWith("http://")) {
+            try {
+                return new PartialZipFile("https://" + url.substring(7), null);
+            } catch (IOException e) {
+                Log.d(TAG, "Could not use https for " + url, e);
+            }
+        }
+        return new PartialZipFile(url, null);
+    }
+
+    private void applyPayload(String url, Payload payload, String downloadId) {
         if (!mBound) {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
+                installationDone(false);
                 mUpdaterController.getActualUpdate(downloadId)
                         .setStatus(UpdateStatus.INSTALLATION_FAILED);
                 mUpdaterController.notifyUpdateChange(downloadId);
@@ -211,8 +300,8 @@ class ABUpdateInstaller {
                 .getBoolean(Constants.PREF_AB_PERF_MODE, false);
         mUpdateEngine.setPerformanceMode(enableABPerfMode);
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
-        mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+        mUpdateEngine.applyPayload(url, payload.mOffset, payload.mSize,
+                payload.mHeaderKeyValuePairs);
 
         mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
         mUpdaterController.notifyUpdateChange(mDownloadId);
@@ -259,6 +348,19 @@ class ABUpdateInstaller {
             return;
         }
 
+        synchronized (this) {
+            if (mLocateTask != null) {
+                // update_engine wasn't given anything yet
+                mLocateTask.cancel(true);
+                mLocateTask = null;
+                installationDone(false);
+                mUpdaterController.getActualUpdate(mDownloadId)
+                        .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+                mUpdaterController.notifyUpdateChange(mDownloadId);
+                return;
+            }
+        }
+
         if (!mBound) {
             Log.e(TAG, "Not connected to update engine");
             return;
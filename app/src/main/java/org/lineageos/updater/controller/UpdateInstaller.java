@@ -25,6 +25,7 @@ import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.FileUtils;
+import org.lineageos.updater.misc.TaskExecutors;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
@@ -35,6 +36,7 @@ import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.Files;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 class UpdateInstaller {
 
@@ -43,7 +45,7 @@ class UpdateInstaller {
     private static UpdateInstaller sInstance = null;
     private static String sInstallingUpdate = null;
 
-    private Thread mPrepareUpdateThread;
+    private Future<?> mPrepareUpdateTask;
     private volatile boolean mCanCancel;
 
     private final Context mContext;
@@ -145,7 +147,7 @@ class UpdateInstaller {
                     } catch (IOException exception) {}
 
                     mCanCancel = false;
-                    if (mPrepareUpdateThread.isInterrupted()) {
+                    if (Thread.currentThread().isInterrupted()) {
                         mUpdaterController.getActualUpdate(update.getDownloadId())
                                 .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
                         mUpdaterController.getActualUpdate(update.getDownloadId())
@@ -164,7 +166,7 @@ class UpdateInstaller {
                 } finally {
                     synchronized (UpdateInstaller.this) {
                         mCanCancel = false;
-                        mPrepareUpdateThread = null;
+                        mPrepareUpdateTask = null;
                         sInstallingUpdate = null;
                     }
                     mUpdaterController.notifyUpdateChange(update.getDownloadId());
@@ -172,8 +174,9 @@ class UpdateInstaller {
             }
         };
 
-        mPrepareUpdateThread = new Thread(copyUpdateRunnable);
-        mPrepareUpdateThread.start();
+        mPrepareUpdateTask = TaskExecutors.submit(TaskExecutors.Pool.COPY,
+                TaskExecutors.Priority.HIGH, "prepare " + update.getDownloadId(),
+                copyUpdateRunnable);
         sInstallingUpdate = update.getDownloadId();
         mCanCancel = false;
 
@@ -187,6 +190,6 @@ class UpdateInstaller {
             Log.d(TAG, "Nothing to cancel");
             return;
         }
-        mPrepareUpdateThread.interrupt();
+        mPrepareUpdateTask.cancel(true);
     }
 }
@@ -19,15 +19,33 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
 import android.database.sqlite.SQLiteDatabase;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.UpdatesDbHelper;
 import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.download.DownloadDigest;
+import org.lineageos.updater.download.DownloadJournal;
+import org.lineageos.updater.download.RateLimiter;
+import org.lineageos.updater.download.RetryPolicy;
+import org.lineageos.updater.download.ThroughputEstimator;
+import org.lineageos.updater.misc.ChunkVerifier;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.PackagePreCheck;
+import org.lineageos.updater.misc.TaskExecutors;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.ChunkManifest;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
@@ -38,13 +56,20 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class UpdaterController {
 
     public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
     public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
+    public static final String ACTION_VERIFY_PROGRESS = "action_verify_progress";
     public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
     public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
@@ -54,6 +79,11 @@ public class UpdaterController {
     private static UpdaterController sUpdaterController;
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
+    private static final int MAX_DOWNLOAD_CONNECTIONS = 4;
+    // Leave some bandwidth to the other apps while the updater isn't in the foreground
+    private static final long BACKGROUND_DOWNLOAD_RATE = 2 * 1024 * 1024;
+    // Ride out a few minutes of flaky connectivity before pausing with an error
+    private static final RetryPolicy DOWNLOAD_RETRY_POLICY = new RetryPolicy(8, 1000, 60000);
 
     private final Context mContext;
     private final LocalBroadcastManager mBroadcastManager;
@@ -64,7 +94,16 @@ public class UpdaterController {
     private final File mDownloadRoot;
 
     private int mActiveDownloads = 0;
-    private final Set<String> mVerifyingUpdates = new HashSet<>();
+    private final Set<String> mVerifyingUpdates = ConcurrentHashMap.newKeySet();
+    private final RateLimiter mRateLimiter = new RateLimiter(BACKGROUND_DOWNLOAD_RATE);
+
+    // The default network, downloads are bound to it
+    private Network mNetwork;
+    private boolean mNetworkMetered;
+    // Downloads paused when the default network became metered
+    private final Set<String> mPausedOnMeteredNetwork = new HashSet<>();
+    // Downloads paused when the default network was lost
+    private final Set<String> mPausedWithoutNetwork = new HashSet<>();
 
     public static synchronized UpdaterController getInstance(Context context) {
         if (sUpdaterController == null) {
@@ -87,16 +126,160 @@ public class UpdaterController {
         for (Update update : mUpdatesDbHelper.getUpdates()) {
             addUpdate(update, false);
         }
+
+        ConnectivityManager connectivityManager =
+                context.getSystemService(ConnectivityManager.class);
+        connectivityManager.registerDefaultNetworkCallback(mNetworkCallback,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network network,
+                NetworkCapabilities networkCapabilities) {
+            onDefaultNetworkChanged(network, !networkCapabilities.hasCapability(
+                    NetworkCapabilities.NET_CAPABILITY_NOT_METERED));
+        }
+
+        @Override
+        public void onLost(Network network) {
+            onDefaultNetworkLost(network);
+        }
+    };
+
+    /**
+     * Move the ongoing downloads to the new default network, so that they don't fail
+     * with the old one. Downloads are paused instead if the network became metered
+     * and the user wants to be warned about that, and resumed once it's not anymore.
+     */
+    private void onDefaultNetworkChanged(Network network, boolean metered) {
+        final Network previous = mNetwork;
+        final boolean wasMetered = mNetworkMetered;
+        mNetwork = network;
+        mNetworkMetered = metered;
+        final boolean warnMetered = metered && PreferenceManager
+                .getDefaultSharedPreferences(mContext)
+                .getBoolean(Constants.PREF_METERED_NETWORK_WARNING, true);
+        if (previous == null) {
+            // The downloads already use the default network, those paused when the
+            // previous one was lost can go on
+            if (warnMetered) {
+                mPausedOnMeteredNetwork.addAll(mPausedWithoutNetwork);
+                mPausedWithoutNetwork.clear();
+            } else {
+                resumePausedDownloads(mPausedWithoutNetwork);
+                resumePausedDownloads(mPausedOnMeteredNetwork);
+            }
+            return;
+        }
+        if (warnMetered && !wasMetered) {
+            for (String downloadId : new ArrayList<>(mDownloads.keySet())) {
+                if (isDownloading(downloadId)) {
+                    Log.d(TAG, "Pausing " + downloadId + " on a metered network");
+                    pauseDownload(downloadId);
+                    mPausedOnMeteredNetwork.add(downloadId);
+                }
+            }
+            return;
+        }
+        if (!network.equals(previous)) {
+            for (DownloadEntry entry : mDownloads.values()) {
+                if (entry.mDownloadClient != null) {
+                    Log.d(TAG, "Moving " + entry.mUpdate.getDownloadId() + " to " + network);
+                    entry.mDownloadClient.setNetwork(network);
+                }
+            }
+        }
+        if (!metered && wasMetered) {
+            resumePausedDownloads(mPausedOnMeteredNetwork);
+        }
+    }
+
+    /**
+     * Pause the ongoing downloads rather than let them fail, they're resumed once
+     * there's a default network again.
+     */
+    private void onDefaultNetworkLost(Network network) {
+        if (!network.equals(mNetwork)) {
+            return;
+        }
+        mNetwork = null;
+        for (String downloadId : new ArrayList<>(mDownloads.keySet())) {
+            if (isDownloading(downloadId)) {
+                Log.d(TAG, "Pausing " + downloadId + " until there's a network");
+                pauseDownload(downloadId);
+                mPausedWithoutNetwork.add(downloadId);
+            }
+        }
+    }
+
+    /**
+     * Resume the given downloads that weren't touched since they were paused.
+     */
+    private void resumePausedDownloads(Set<String> downloadIds) {
+        for (String downloadId : downloadIds) {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry != null && entry.mUpdate.getStatus() == UpdateStatus.PAUSED) {
+                resumeDownload(downloadId);
+            }
+        }
+        downloadIds.clear();
     }
 
     private static class DownloadEntry {
         final Update mUpdate;
         DownloadClient mDownloadClient;
+        // Kept across pause and resume
+        ThroughputEstimator mThroughputEstimator = new ThroughputEstimator();
+        DownloadDigest mDigest;
+        // Started by AutoDownloadJobService, which holds its own wakelock
+        boolean mUnattended;
+        volatile Verification mVerification;
+        // Possibly still running, the next verification waits for it
+        volatile Verification mCancelledVerification;
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
     }
 
+    /**
+     * A verification in progress, which pausing or deleting the update cancels.
+     * Its outcome is only applied while holding its lock and if it wasn't cancelled.
+     */
+    private static class Verification {
+        volatile boolean mCancelled;
+        volatile Future<?> mFuture;
+        // Cancelled before this one was started, cleared once it's over
+        volatile Verification mPrevious;
+        // Claimed by the task when it starts, or on cancel if it never did
+        final AtomicBoolean mStarted = new AtomicBoolean();
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        /**
+         * Wait until neither this nor the verifications before it can touch the file.
+         * Cancelled checks give up at their next progress report, so it's quick.
+         */
+        void awaitDone() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            final Verification previous = mPrevious;
+            if (previous != null) {
+                previous.awaitDone();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     private final Map<String, DownloadEntry> mDownloads = new HashMap<>();
 
     void notifyUpdateChange(String downloadId) {
@@ -127,10 +310,20 @@ public class UpdaterController {
         mBroadcastManager.sendBroadcast(intent);
     }
 
+    void notifyVerifyProgress(String downloadId) {
+        Intent intent = new Intent();
+        intent.setAction(ACTION_VERIFY_PROGRESS);
+        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
+        mBroadcastManager.sendBroadcast(intent);
+    }
+
     private void tryReleaseWakelock() {
-        if (!hasActiveDownloads()) {
-            mWakeLock.release();
+        for (DownloadEntry entry : mDownloads.values()) {
+            if (entry.mDownloadClient != null && !entry.mUnattended) {
+                return;
+            }
         }
+        mWakeLock.release();
     }
 
     private void addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
@@ -151,6 +344,7 @@ public class UpdaterController {
 
     private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId) {
         return new DownloadClient.DownloadCallback() {
+            private int mStalls;
 
             @Override
             public void onResponse(DownloadClient.Headers headers) {
@@ -172,8 +366,9 @@ public class UpdaterController {
                 }
                 update.setStatus(UpdateStatus.DOWNLOADING);
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
-                new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
-                        SQLiteDatabase.CONFLICT_REPLACE)).start();
+                TaskExecutors.submit(TaskExecutors.Pool.DISK, "save " + downloadId,
+                        () -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
+                                SQLiteDatabase.CONFLICT_REPLACE));
                 notifyUpdateChange(downloadId);
             }
 
@@ -185,7 +380,8 @@ public class UpdaterController {
                     Update update = entry.mUpdate;
                     update.setStatus(UpdateStatus.VERIFYING);
                     removeDownloadClient(entry);
-                    verifyUpdateAsync(downloadId);
+                    // The download was checked against its digest as it was written
+                    verifyUpdateAsync(downloadId, false);
                     notifyUpdateChange(downloadId);
                     tryReleaseWakelock();
                 }
@@ -200,7 +396,8 @@ public class UpdaterController {
                     DownloadEntry entry = mDownloads.get(downloadId);
                     if (entry != null) {
                         Update update = entry.mUpdate;
-                        Log.e(TAG, "Download failed");
+                        Log.e(TAG, mStalls > 0 ? "Download failed after " + mStalls +
+                                " stalled connections" : "Download failed");
                         removeDownloadClient(entry);
                         update.setStatus(UpdateStatus.PAUSED_ERROR);
                         notifyUpdateChange(downloadId);
@@ -208,6 +405,56 @@ public class UpdaterController {
                 }
                 tryReleaseWakelock();
             }
+
+            @Override
+            public void onDigestMismatch() {
+                DownloadEntry entry = mDownloads.get(downloadId);
+                if (entry != null) {
+                    Update update = entry.mUpdate;
+                    removeDownloadClient(entry);
+                    entry.mDigest = null;
+                    if (update.getSha256() == null) {
+                        // The id is only assumed to be the MD5 of the package, which
+                        // isn't the case for every server. Let the signature decide.
+                        Log.w(TAG, "Downloaded file doesn't match its id, verifying it");
+                        update.setStatus(UpdateStatus.VERIFYING);
+                        verifyUpdateAsync(downloadId, true);
+                        notifyUpdateChange(downloadId);
+                        tryReleaseWakelock();
+                        return;
+                    }
+                    Log.e(TAG, "Downloaded file doesn't match its digest");
+                    File file = update.getFile();
+                    if (file.exists() && !file.delete()) {
+                        Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+                    }
+                    update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                    mUpdatesDbHelper.removeUpdate(downloadId);
+                    update.setProgress(0);
+                    update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+                    notifyUpdateChange(downloadId);
+                }
+                tryReleaseWakelock();
+            }
+
+            @Override
+            public void onStalls(int count) {
+                mStalls = count;
+            }
+
+            @Override
+            public void onPackageRejected() {
+                DownloadEntry entry = mDownloads.get(downloadId);
+                if (entry != null) {
+                    Update update = entry.mUpdate;
+                    Log.e(TAG, downloadId + " would fail verification, not downloading it");
+                    removeDownloadClient(entry);
+                    entry.mDigest = null;
+                    update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+                    notifyUpdateChange(downloadId);
+                }
+                tryReleaseWakelock();
+            }
         };
     }
 
@@ -218,6 +465,12 @@ public class UpdaterController {
 
             @Override
             public void update(long bytesRead, long contentLength, long speed, long eta) {
+                update(bytesRead, contentLength, speed, eta, -1, -1);
+            }
+
+            @Override
+            public void update(long bytesRead, long contentLength, long speed, long eta,
+                    long minEta, long maxEta) {
                 DownloadEntry entry = mDownloads.get(downloadId);
                 if (entry == null) {
                     return;
@@ -240,6 +493,7 @@ public class UpdaterController {
                     mLastUpdate = now;
                     update.setProgress(progress);
                     update.setEta(eta);
+                    update.setEtaRange(minEta, maxEta);
                     update.setSpeed(speed);
                     notifyDownloadProgress(downloadId);
                 }
@@ -247,38 +501,198 @@ public class UpdaterController {
         };
     }
 
-    @SuppressLint("SetWorldReadable")
-    private void verifyUpdateAsync(final String downloadId) {
+    /**
+     * @param checkChunks whether to check the file against the chunk manifest of the
+     *                    update first, if there's one. The chunks are hashed in
+     *                    parallel, so corrupted files are caught much quicker than
+     *                    by the signature check.
+     */
+    private void verifyUpdateAsync(final String downloadId, boolean checkChunks) {
+        final DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return;
+        }
+        final Verification verification = new Verification();
+        verification.mPrevious = entry.mCancelledVerification;
+        entry.mCancelledVerification = null;
+        entry.mVerification = verification;
+        entry.mUpdate.setVerifyProgress(0);
         mVerifyingUpdates.add(downloadId);
-        new Thread(() -> {
-            DownloadEntry entry = mDownloads.get(downloadId);
-            if (entry != null) {
-                Update update = entry.mUpdate;
-                File file = update.getFile();
-                if (file.exists() && verifyPackage(file)) {
-                    //noinspection ResultOfMethodCallIgnored
-                    file.setReadable(true, false);
-                    update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                    mUpdatesDbHelper.changeUpdateStatus(update);
-                    update.setStatus(UpdateStatus.VERIFIED);
-                } else {
-                    update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                    mUpdatesDbHelper.removeUpdate(downloadId);
-                    update.setProgress(0);
-                    update.setStatus(UpdateStatus.VERIFICATION_FAILED);
-                }
-                mVerifyingUpdates.remove(downloadId);
-                notifyUpdateChange(downloadId);
+        verification.mFuture = TaskExecutors.submit(TaskExecutors.Pool.CPU,
+                "verify " + downloadId, () -> {
+            if (!verification.mStarted.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                verify(entry, checkChunks, verification);
+            } finally {
+                verification.mDone.countDown();
             }
-        }).start();
+        });
     }
 
-    private boolean verifyPackage(File file) {
+    private void verify(DownloadEntry entry, boolean checkChunks,
+            Verification verification) {
+        final Verification previous = verification.mPrevious;
+        if (previous != null) {
+            // Two checks of the same file could undo each other
+            previous.awaitDone();
+            verification.mPrevious = null;
+            if (verification.mCancelled) {
+                return;
+            }
+        }
+        Update update = entry.mUpdate;
+        String downloadId = update.getDownloadId();
+        File file = update.getFile();
+        final long startMillis = SystemClock.elapsedRealtime();
+        final boolean verified = file.exists() &&
+                verifyUpdate(update, checkChunks, verification);
+        synchronized (verification) {
+            if (verification.mCancelled) {
+                Log.d(TAG, "Verification of " + downloadId + " cancelled");
+                return;
+            }
+            Log.d(TAG, "Verification of " + downloadId + " took " +
+                    (SystemClock.elapsedRealtime() - startMillis) + "ms");
+            if (verified) {
+                update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+                mUpdatesDbHelper.changeUpdateStatus(update);
+                update.setStatus(UpdateStatus.VERIFIED);
+            } else {
+                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                mUpdatesDbHelper.removeUpdate(downloadId);
+                update.setProgress(0);
+                update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+            }
+            entry.mVerification = null;
+            mVerifyingUpdates.remove(downloadId);
+        }
+        notifyUpdateChange(downloadId);
+    }
+
+    /**
+     * Stop verifying the given update. Its file is left as is and its status is up
+     * to the caller.
+     *
+     * @return whether the update was being verified
+     */
+    private boolean cancelVerification(DownloadEntry entry) {
+        final Verification verification = entry.mVerification;
+        if (verification == null) {
+            return false;
+        }
+        synchronized (verification) {
+            if (entry.mVerification != verification) {
+                // Completed meanwhile
+                return false;
+            }
+            verification.mCancelled = true;
+            entry.mVerification = null;
+            entry.mCancelledVerification = verification;
+            mVerifyingUpdates.remove(entry.mUpdate.getDownloadId());
+        }
+        if (verification.mStarted.compareAndSet(false, true)) {
+            // Never started and now never will, only what was before it is waited for
+            verification.mDone.countDown();
+        }
+        final Future<?> future = verification.mFuture;
+        if (future != null) {
+            // The chunk check gives up when interrupted, the signature check once the
+            // progress listener throws
+            future.cancel(true);
+        }
+        return true;
+    }
+
+    /**
+     * Files that already passed the checks as they are now, such as downloads resumed
+     * after being verified, aren't checked again.
+     */
+    private boolean verifyUpdate(Update update, boolean checkChunks,
+            Verification verification) {
+        File file = update.getFile();
+        final String digest = getPackageDigest(update);
+        if (mUpdatesDbHelper.isPackageVerified(file, digest)) {
+            Log.d(TAG, file + " was already verified");
+            makeWorldReadable(file);
+            return true;
+        }
+        StructStat stat = UpdatesDbHelper.stat(file);
+        if ((checkChunks && !verifyChunks(update, verification)) ||
+                !verifyPackage(update, verification)) {
+            if (!verification.mCancelled) {
+                mUpdatesDbHelper.removeVerifiedPackage(file);
+            }
+            return false;
+        }
+        // Making the file readable changes its identity, so whether anything else
+        // changed during the check has to be known before
+        final boolean changed = UpdatesDbHelper.hasChanged(file, stat);
+        makeWorldReadable(file);
+        if (changed) {
+            Log.w(TAG, file + " changed while it was verified");
+        } else {
+            mUpdatesDbHelper.addVerifiedPackage(file, UpdatesDbHelper.stat(file), digest);
+        }
+        return true;
+    }
+
+    /**
+     * Let recovery and update_engine read the package. The mode is only changed if
+     * needed, since that changes the identity of the file for the verification cache.
+     */
+    @SuppressLint("SetWorldReadable")
+    private static void makeWorldReadable(File file) {
+        StructStat stat = UpdatesDbHelper.stat(file);
+        if (stat == null || (stat.st_mode & OsConstants.S_IROTH) == 0) {
+            //noinspection ResultOfMethodCallIgnored
+            file.setReadable(true, false);
+        }
+    }
+
+    private boolean verifyChunks(UpdateInfo update, Verification verification) {
+        ChunkManifest manifest = update.getChunkManifest();
+        if (manifest == null) {
+            return true;
+        }
+        File file = update.getFile();
+        try {
+            if (ChunkVerifier.verify(file, manifest)) {
+                return true;
+            }
+            if (verification.mCancelled) {
+                // The file may be written to again by now
+                return false;
+            }
+            Log.e(TAG, "Chunk verification failed");
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        } catch (IOException e) {
+            // The download was probably stopped
+            Log.e(TAG, "Error while verifying the chunks of the file", e);
+        }
+        return false;
+    }
+
+    private boolean verifyPackage(Update update, Verification verification) {
+        final File file = update.getFile();
+        final String downloadId = update.getDownloadId();
         try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
+            android.os.RecoverySystem.verifyPackage(file, progress -> {
+                if (verification.mCancelled) {
+                    // It's the only way to make it stop before the end of the file
+                    throw new CancellationException("Verification cancelled");
+                }
+                update.setVerifyProgress(progress);
+                notifyVerifyProgress(downloadId);
+            }, null);
             Log.e(TAG, "Verification successful");
             return true;
         } catch (Exception e) {
+            if (verification.mCancelled) {
+                return false;
+            }
             Log.e(TAG, "Verification failed", e);
             if (file.exists()) {
                 //noinspection ResultOfMethodCallIgnored
@@ -301,7 +715,7 @@ public class UpdaterController {
                 } else if (update.getFileSize() > 0) {
                     update.setStatus(UpdateStatus.PAUSED);
                     int progress = Math.round(
-                            update.getFile().length() * 100f / update.getFileSize());
+                            getDownloadedBytes(update.getFile()) * 100f / update.getFileSize());
                     update.setProgress(progress);
                 }
                 break;
@@ -309,6 +723,37 @@ public class UpdaterController {
         return true;
     }
 
+    private static boolean hasEnoughSpace(File root, long size) {
+        // The size is unknown, let the download find out
+        return size <= 0 || root.getUsableSpace() >= size;
+    }
+
+    /**
+     * @return the digest to check the download of the given update against, the
+     * SHA-256 if the server published one, the MD5 the update is identified by otherwise
+     */
+    private static DownloadDigest createDigest(UpdateInfo update) {
+        if (update.getSha256() != null) {
+            return new DownloadDigest("SHA-256", update.getSha256());
+        }
+        return new DownloadDigest("MD5", update.getDownloadId());
+    }
+
+    /**
+     * @return the digest the update is known by, prefixed by its algorithm
+     */
+    private static String getPackageDigest(UpdateInfo update) {
+        if (update.getSha256() != null) {
+            return "SHA-256:" + update.getSha256().toLowerCase(Locale.ROOT);
+        }
+        return "MD5:" + update.getDownloadId();
+    }
+
+    private static long getDownloadedBytes(File file) {
+        long bytes = DownloadJournal.getCompletedBytes(file);
+        return bytes >= 0 ? bytes : file.length();
+    }
+
     public void setUpdatesAvailableOnline(List<String> downloadIds, boolean purgeList) {
         List<String> toRemove = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
@@ -339,6 +784,10 @@ public class UpdaterController {
                 Update updateAdded = entry.mUpdate;
                 updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
                 updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+                // Manifests aren't stored along with the downloads
+                if (updateAdded.getChunkManifest() == null) {
+                    updateAdded.setChunkManifest(updateInfo.getChunkManifest());
+                }
             }
             return false;
         }
@@ -354,8 +803,34 @@ public class UpdaterController {
         return true;
     }
 
-    @SuppressLint("WakelockTimeout")
     public void startDownload(String downloadId) {
+        startDownload(downloadId, false);
+    }
+
+    /**
+     * Start or resume the download of the given update without keeping the device
+     * awake, it's up to the caller to do it for as long as the download should go on.
+     *
+     * @return true if the update is being downloaded
+     */
+    public boolean startUnattendedDownload(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return false;
+        }
+        Update update = entry.mUpdate;
+        File file = update.getFile();
+        if (file != null && file.exists() && (update.getStatus() == UpdateStatus.PAUSED ||
+                update.getStatus() == UpdateStatus.PAUSED_ERROR)) {
+            resumeDownload(downloadId, true);
+        } else {
+            startDownload(downloadId, true);
+        }
+        return isDownloading(downloadId);
+    }
+
+    @SuppressLint("WakelockTimeout")
+    private void startDownload(String downloadId, boolean unattended) {
         Log.d(TAG, "Starting " + downloadId);
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return;
@@ -366,12 +841,20 @@ public class UpdaterController {
             return;
         }
         Update update = entry.mUpdate;
+        if (!hasEnoughSpace(mDownloadRoot, update.getFileSize())) {
+            Log.e(TAG, "Not enough space to download " + downloadId);
+            update.setStatus(UpdateStatus.PAUSED_ERROR);
+            notifyUpdateChange(downloadId);
+            return;
+        }
         File destination = new File(mDownloadRoot, update.getName());
         if (destination.exists()) {
             destination = Utils.appendSequentialNumber(destination);
             Log.d(TAG, "Changing name with " + destination.getName());
         }
         update.setFile(destination);
+        entry.mThroughputEstimator = new ThroughputEstimator();
+        entry.mDigest = createDigest(update);
         DownloadClient downloadClient;
         try {
             downloadClient = new DownloadClient.Builder()
@@ -380,6 +863,16 @@ public class UpdaterController {
                     .setDownloadCallback(getDownloadCallback(downloadId))
                     .setProgressListener(getProgressListener(downloadId))
                     .setUseDuplicateLinks(true)
+                    .setMaxConnections(MAX_DOWNLOAD_CONNECTIONS)
+                    .setUseMirrorStriping(true)
+                    .setUseJournal(true)
+                    .setUseDirectBuffers(true)
+                    .setRateLimiter(mRateLimiter)
+                    .setThroughputEstimator(entry.mThroughputEstimator)
+                    .setRetryPolicy(DOWNLOAD_RETRY_POLICY)
+                    .setNetwork(mNetwork)
+                    .setDigest(entry.mDigest)
+                    .setPackageCheck(new PackagePreCheck())
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -388,14 +881,21 @@ public class UpdaterController {
             return;
         }
         addDownloadClient(entry, downloadClient);
+        entry.mUnattended = unattended;
         update.setStatus(UpdateStatus.STARTING);
         notifyUpdateChange(downloadId);
         downloadClient.start();
-        mWakeLock.acquire();
+        if (!unattended) {
+            mWakeLock.acquire();
+        }
     }
 
-    @SuppressLint("WakelockTimeout")
     public void resumeDownload(String downloadId) {
+        resumeDownload(downloadId, false);
+    }
+
+    @SuppressLint("WakelockTimeout")
+    private void resumeDownload(String downloadId, boolean unattended) {
         Log.d(TAG, "Resuming " + downloadId);
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return;
@@ -413,12 +913,26 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
+        if (file.exists() && update.getFileSize() > 0 &&
+                getDownloadedBytes(file) >= update.getFileSize()) {
             Log.d(TAG, "File already downloaded, starting verification");
+            DownloadJournal.delete(file);
             update.setStatus(UpdateStatus.VERIFYING);
-            verifyUpdateAsync(downloadId);
+            verifyUpdateAsync(downloadId, true);
             notifyUpdateChange(downloadId);
         } else {
+            // Journaled downloads have already reserved the space they need
+            if (!DownloadJournal.exists(file) && !hasEnoughSpace(mDownloadRoot,
+                    update.getFileSize() - file.length())) {
+                Log.e(TAG, "Not enough space to resume " + downloadId);
+                update.setStatus(UpdateStatus.PAUSED_ERROR);
+                notifyUpdateChange(downloadId);
+                return;
+            }
+            if (entry.mDigest == null) {
+                // What was downloaded before is hashed again when resuming
+                entry.mDigest = createDigest(update);
+            }
             DownloadClient downloadClient;
             try {
                 downloadClient = new DownloadClient.Builder()
@@ -427,6 +941,15 @@ public class UpdaterController {
                         .setDownloadCallback(getDownloadCallback(downloadId))
                         .setProgressListener(getProgressListener(downloadId))
                         .setUseDuplicateLinks(true)
+                        .setMaxConnections(MAX_DOWNLOAD_CONNECTIONS)
+                        .setUseMirrorStriping(true)
+                        .setUseJournal(true)
+                        .setUseDirectBuffers(true)
+                        .setRateLimiter(mRateLimiter)
+                        .setThroughputEstimator(entry.mThroughputEstimator)
+                        .setRetryPolicy(DOWNLOAD_RETRY_POLICY)
+                        .setNetwork(mNetwork)
+                        .setDigest(entry.mDigest)
                         .build();
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
@@ -435,38 +958,53 @@ public class UpdaterController {
                 return;
             }
             addDownloadClient(entry, downloadClient);
+            entry.mUnattended = unattended;
             update.setStatus(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
             downloadClient.resume();
-            mWakeLock.acquire();
+            if (!unattended) {
+                mWakeLock.acquire();
+            }
         }
     }
 
     public void pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry != null && cancelVerification(entry)) {
+            // The file is complete, it's verified again when resumed
+            entry.mUpdate.setStatus(UpdateStatus.PAUSED);
+            notifyUpdateChange(downloadId);
+            return;
+        }
         if (!isDownloading(downloadId)) {
             return;
         }
 
-        DownloadEntry entry = mDownloads.get(downloadId);
         if (entry != null) {
             entry.mDownloadClient.cancel();
             removeDownloadClient(entry);
             entry.mUpdate.setStatus(UpdateStatus.PAUSED);
             entry.mUpdate.setEta(0);
+            entry.mUpdate.setEtaRange(-1, -1);
             entry.mUpdate.setSpeed(0);
             notifyUpdateChange(downloadId);
         }
     }
 
     private void deleteUpdateAsync(final Update update) {
-        new Thread(() -> {
+        TaskExecutors.submit(TaskExecutors.Pool.DISK, "delete " + update.getDownloadId(), () -> {
             File file = update.getFile();
-            if (file.exists() && !file.delete()) {
-                Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+            // Streamed updates were never downloaded
+            if (file != null) {
+                if (file.exists() && !file.delete()) {
+                    Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+                }
+                DownloadJournal.delete(file);
+                mUpdatesDbHelper.removeVerifiedPackage(file);
             }
             mUpdatesDbHelper.removeUpdate(update.getDownloadId());
-        }).start();
+        });
     }
 
     public void deleteUpdate(String downloadId) {
@@ -476,6 +1014,7 @@ public class UpdaterController {
         }
         DownloadEntry entry = mDownloads.get(downloadId);
         if (entry != null) {
+            cancelVerification(entry);
             Update update = entry.mUpdate;
             update.setStatus(UpdateStatus.DELETED);
             update.setProgress(0);
@@ -547,6 +1086,14 @@ public class UpdaterController {
         return ABUpdateInstaller.isWaitingForReboot(mContext, downloadId);
     }
 
+    /**
+     * Let downloads use all the bandwidth while the updater is in the foreground,
+     * throttle them otherwise. This applies to the ongoing downloads as well.
+     */
+    public void setForeground(boolean foreground) {
+        mRateLimiter.setRate(foreground ? RateLimiter.UNLIMITED : BACKGROUND_DOWNLOAD_RATE);
+    }
+
     public void setPerformanceMode(boolean enable) {
         if (!Utils.isABDevice()) {
             return;
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Process-wide pool of the receive buffers used by downloads, so that the large
+ * buffers needed by fast connections are allocated once and reused.
+ */
+final class BufferPool {
+
+    // Don't keep more than this around once downloads are over
+    private static final long MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    private static final Deque<ByteBuffer> sDirectBuffers = new ArrayDeque<>();
+    private static final Deque<ByteBuffer> sHeapBuffers = new ArrayDeque<>();
+    private static long sPooledBytes = 0;
+
+    private BufferPool() {
+    }
+
+    /**
+     * Get a cleared buffer of exactly the given capacity.
+     */
+    static synchronized ByteBuffer acquire(int capacity, boolean direct) {
+        Deque<ByteBuffer> buffers = direct ? sDirectBuffers : sHeapBuffers;
+        for (Iterator<ByteBuffer> it = buffers.iterator(); it.hasNext(); ) {
+            ByteBuffer buffer = it.next();
+            if (buffer.capacity() == capacity) {
+                // Not remove(Object), buffers with the same content are equal
+                it.remove();
+                sPooledBytes -= capacity;
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    static synchronized void release(ByteBuffer buffer) {
+        Deque<ByteBuffer> buffers = buffer.isDirect() ? sDirectBuffers : sHeapBuffers;
+        buffers.addFirst(buffer);
+        sPooledBytes += buffer.capacity();
+        // Evict the least recently used buffers first
+        while (sPooledBytes > MAX_POOLED_BYTES) {
+            Deque<ByteBuffer> victims = sHeapBuffers.isEmpty() ? sDirectBuffers : sHeapBuffers;
+            sPooledBytes -= victims.removeLast().capacity();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.net.Network;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens and releases the connections of all the downloads of the process, so that
+ * they share the keep-alive sockets and TLS sessions of the platform connection pool.
+ * A connection only goes back to the pool once its response has been read to the
+ * end and closed, HttpURLConnection.disconnect() closes the socket instead. Use
+ * release() when done with a connection and only disconnect the ones that still
+ * have a large part of the response to be read.
+ */
+final class ConnectionManager {
+
+    private static final String TAG = "ConnectionManager";
+
+    // Read what's left of a response to keep the connection only if it's this small
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    // Half-dead connections would otherwise block reads forever
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private ConnectionManager() {
+    }
+
+    /**
+     * @param network the network to bind the connection to, null for the default one
+     */
+    static HttpURLConnection open(URL url, Network network) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) (network != null ?
+                network.openConnection(url) : url.openConnection());
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        // Never let the connection negotiate compression on its own, the length
+        // of the content is what range requests and resuming rely on
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    /**
+     * Give a connected connection back to the pool, reading what's left of the
+     * response first. The connection is closed if that's too much.
+     */
+    static void release(HttpURLConnection connection) {
+        try {
+            InputStream inputStream = connection.getResponseCode() >= 400 ?
+                    connection.getErrorStream() : connection.getInputStream();
+            if (inputStream == null) {
+                // There's no body, nothing is holding the connection
+                return;
+            }
+            if (drain(inputStream)) {
+                inputStream.close();
+                return;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Could not release connection to " + connection.getURL(), e);
+        }
+        connection.disconnect();
+    }
+
+    private static boolean drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        int total = 0;
+        int count;
+        while ((count = inputStream.read(buffer)) >= 0) {
+            total += count;
+            if (total > MAX_DRAIN_BYTES) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.lineageos.updater.download;
 
+import android.net.Network;
+
 import java.io.File;
 import java.io.IOException;
 
@@ -26,16 +28,80 @@ public interface DownloadClient {
         void onSuccess();
 
         void onFailure(boolean cancelled);
+
+        /**
+         * Called instead of onSuccess() when the request was made conditional with
+         * Builder.setIfNoneMatch() or Builder.setIfModifiedSince() and the server
+         * copy didn't change. The destination is left untouched.
+         */
+        default void onNotModified() {
+            onFailure(false);
+        }
+
+        /**
+         * Called instead of onSuccess() when the download was given a digest with
+         * Builder.setDigest() and the downloaded file doesn't match it. The
+         * destination is left as is.
+         */
+        default void onDigestMismatch() {
+            onFailure(false);
+        }
+
+        /**
+         * Called instead of onResponse() when the download was given a check with
+         * Builder.setPackageCheck() and the package didn't pass it. Nothing was
+         * written to the destination.
+         */
+        default void onPackageRejected() {
+            onFailure(false);
+        }
+
+        /**
+         * Called right before the download ends, if connections were closed because
+         * they stalled. What they were downloading was downloaded again.
+         */
+        default void onStalls(int count) {
+        }
+    }
+
+    /**
+     * Looks at a zip before downloading it, through the central directory and the
+     * entries that can be read from it remotely.
+     */
+    interface PackageCheck {
+        /**
+         * @return whether the zip is worth downloading
+         * @throws IOException if it couldn't be checked, the download goes on then
+         */
+        boolean check(PartialZipFile zip) throws IOException;
     }
 
     interface ProgressListener {
         void update(long bytesRead, long contentLength, long speed, long eta);
+
+        /**
+         * Like update(), with the range the ETA most likely falls in. The narrower the
+         * range, the steadier the download. Values that aren't known yet are -1.
+         */
+        default void update(long bytesRead, long contentLength, long speed, long eta,
+                long minEta, long maxEta) {
+            update(bytesRead, contentLength, speed, eta);
+        }
     }
 
     interface Headers {
         String get(String name);
     }
 
+    /**
+     * Creates the clients that do the actual work. Backends only need to honor
+     * the options of the Builder that make sense for them, but have to follow the
+     * DownloadCallback and ProgressListener contracts.
+     */
+    interface Backend {
+        DownloadClient create(Builder builder) throws IOException;
+    }
+
     /**
      * Start the download. This method has no effect if the download already started.
      */
@@ -54,12 +120,35 @@ public interface DownloadClient {
      */
     void cancel();
 
+    /**
+     * Move the download to the given network, null being the default one. Ongoing
+     * requests are dropped and issued again on the new network from where they got to.
+     */
+    default void setNetwork(Network network) {
+    }
+
     final class Builder {
+        private static volatile Backend sDefaultBackend = HttpURLConnectionClient::new;
+
+        private Backend mBackend;
         private String mUrl;
         private File mDestination;
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private int mMaxConnections = 1;
+        private boolean mUseMirrorStriping;
+        private boolean mUseJournal;
+        private boolean mUseDirectBuffers;
+        private String mIfNoneMatch;
+        private String mIfModifiedSince;
+        private boolean mUseCompression;
+        private RateLimiter mRateLimiter;
+        private ThroughputEstimator mThroughputEstimator;
+        private RetryPolicy mRetryPolicy;
+        private Network mNetwork;
+        private DownloadDigest mDigest;
+        private PackageCheck mPackageCheck;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -69,8 +158,26 @@ public interface DownloadClient {
             } else if (mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
             }
-            return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+            Backend backend = mBackend != null ? mBackend : sDefaultBackend;
+            return backend.create(this);
+        }
+
+        /**
+         * Set the backend used by the builders that don't select one explicitly.
+         */
+        public static void setDefaultBackend(Backend backend) {
+            if (backend == null) {
+                throw new IllegalArgumentException("No backend defined");
+            }
+            sDefaultBackend = backend;
+        }
+
+        /**
+         * Use the given backend for this download instead of the default one.
+         */
+        public Builder setBackend(Backend backend) {
+            mBackend = backend;
+            return this;
         }
 
         public Builder setUrl(String url) {
@@ -97,5 +204,200 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Allow the file to be split in up to maxConnections byte ranges downloaded
+         * concurrently. The server needs to support range requests, otherwise a
+         * single connection is used.
+         */
+        public Builder setMaxConnections(int maxConnections) {
+            mMaxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * Spread the connections allowed by setMaxConnections() over the duplicate
+         * links advertised by the server, rather than only using them as fallback.
+         * Has no effect unless duplicate links are used.
+         */
+        public Builder setUseMirrorStriping(boolean useMirrorStriping) {
+            mUseMirrorStriping = useMirrorStriping;
+            return this;
+        }
+
+        /**
+         * Keep a journal of the completed parts of the download next to the
+         * destination, so that it can be resumed without trusting its length.
+         */
+        public Builder setUseJournal(boolean useJournal) {
+            mUseJournal = useJournal;
+            return this;
+        }
+
+        /**
+         * Receive into pooled direct buffers that are written to the destination
+         * through its FileChannel, keeping large transfers off the Java heap.
+         */
+        public Builder setUseDirectBuffers(boolean useDirectBuffers) {
+            mUseDirectBuffers = useDirectBuffers;
+            return this;
+        }
+
+        /**
+         * Only download the file if its ETag doesn't match the given one, which
+         * should come from the Headers of a previous download.
+         */
+        public Builder setIfNoneMatch(String etag) {
+            mIfNoneMatch = etag;
+            return this;
+        }
+
+        /**
+         * Only download the file if it changed after the given date, which should
+         * be the Last-Modified header of a previous download.
+         */
+        public Builder setIfModifiedSince(String lastModified) {
+            mIfModifiedSince = lastModified;
+            return this;
+        }
+
+        /**
+         * Let the server compress the content, which is decompressed while it's
+         * written to the destination. The size of the file isn't known upfront
+         * this way, so it should only be used for small files that aren't resumed.
+         */
+        public Builder setUseCompression(boolean useCompression) {
+            mUseCompression = useCompression;
+            return this;
+        }
+
+        /**
+         * Limit the bandwidth of the download with the given limiter. The limiter can
+         * be shared with other downloads and its rate changed while they're running.
+         */
+        public Builder setRateLimiter(RateLimiter rateLimiter) {
+            mRateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * Estimate the speed of the download with the given estimator. Giving the
+         * estimator of the paused download to the one resuming it avoids starting
+         * over without any estimate.
+         */
+        public Builder setThroughputEstimator(ThroughputEstimator throughputEstimator) {
+            mThroughputEstimator = throughputEstimator;
+            return this;
+        }
+
+        /**
+         * Retry the requests that fail with errors that look temporary, resuming
+         * from where they got to. Without a policy, the first error is final.
+         */
+        public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+            mRetryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Bind the connections of the download to the given network instead of
+         * the default one.
+         */
+        public Builder setNetwork(Network network) {
+            mNetwork = network;
+            return this;
+        }
+
+        /**
+         * Hash the file while it's downloaded and check it against the expected
+         * digest once complete. Giving the digest of the paused download to the one
+         * resuming it avoids reading back what was already downloaded.
+         */
+        public Builder setDigest(DownloadDigest digest) {
+            mDigest = digest;
+            return this;
+        }
+
+        /**
+         * Check the zip being downloaded from its tail before fetching the rest, so
+         * that packages that would be rejected once downloaded aren't. Only done
+         * when the download starts from scratch.
+         */
+        public Builder setPackageCheck(PackageCheck packageCheck) {
+            mPackageCheck = packageCheck;
+            return this;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public File getDestination() {
+            return mDestination;
+        }
+
+        public DownloadClient.DownloadCallback getDownloadCallback() {
+            return mCallback;
+        }
+
+        public DownloadClient.ProgressListener getProgressListener() {
+            return mProgressListener;
+        }
+
+        public boolean getUseDuplicateLinks() {
+            return mUseDuplicateLinks;
+        }
+
+        public int getMaxConnections() {
+            return mMaxConnections;
+        }
+
+        public boolean getUseMirrorStriping() {
+            return mUseMirrorStriping;
+        }
+
+        public boolean getUseJournal() {
+            return mUseJournal;
+        }
+
+        public boolean getUseDirectBuffers() {
+            return mUseDirectBuffers;
+        }
+
+        public String getIfNoneMatch() {
+            return mIfNoneMatch;
+        }
+
+        public String getIfModifiedSince() {
+            return mIfModifiedSince;
+        }
+
+        public boolean getUseCompression() {
+            return mUseCompression;
+        }
+
+        public RateLimiter getRateLimiter() {
+            return mRateLimiter;
+        }
+
+        public ThroughputEstimator getThroughputEstimator() {
+            return mThroughputEstimator;
+        }
+
+        public RetryPolicy getRetryPolicy() {
+            return mRetryPolicy;
+        }
+
+        public Network getNetwork() {
+            return mNetwork;
+        }
+
+        public DownloadDigest getDigest() {
+            return mDigest;
+        }
+
+        public PackageCheck getPackageCheck() {
+            return mPackageCheck;
+        }
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import org.lineageos.updater.misc.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest of a download, computed as the bytes are written so that whether the file
+ * matches the expected digest is known as soon as it's complete. Hashing is
+ * sequential, so only the bytes written right at the end of what was hashed so far
+ * go through it directly. The ones written further by other connections are read
+ * back from the destination once everything before them is there.
+ * Its state only lives in memory. It can be given to the client resuming a paused
+ * download, but once the app was restarted what was downloaded is hashed again.
+ */
+public final class DownloadDigest {
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final String mAlgorithm;
+    private final String mExpected;
+    private final MessageDigest mDigest;
+    // Everything before this was hashed
+    private volatile long mPosition;
+    private byte[] mResult;
+
+    /**
+     * @param algorithm the name of a MessageDigest algorithm, such as SHA-256
+     * @param expected the expected digest of the whole download, in hex
+     */
+    public DownloadDigest(String algorithm, String expected) {
+        try {
+            mDigest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e);
+        }
+        mAlgorithm = algorithm;
+        mExpected = expected;
+    }
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Start over, for downloads that restart from the beginning.
+     */
+    synchronized void reset() {
+        mDigest.reset();
+        mPosition = 0;
+        mResult = null;
+    }
+
+    /**
+     * Hash the given bytes, just written at position, if they're the next ones.
+     * Those that were already hashed are skipped, those that come after a gap are
+     * left for catchUp().
+     */
+    void update(ByteBuffer data, long position) {
+        if (position > mPosition) {
+            return;
+        }
+        synchronized (this) {
+            final long end = position + data.remaining();
+            if (position > mPosition || end <= mPosition || mResult != null) {
+                return;
+            }
+            ByteBuffer next = data.duplicate();
+            next.position(next.position() + (int) (mPosition - position));
+            mDigest.update(next);
+            mPosition = end;
+        }
+    }
+
+    /**
+     * Hash what wasn't yet, up to end, reading it back from the file. Everything
+     * before end must have been written already.
+     */
+    synchronized void catchUp(File file, long end) throws IOException {
+        if (end <= mPosition || mResult != null) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(
+                (int) Math.min(READ_BUFFER_SIZE, end - mPosition));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            while (mPosition < end) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - mPosition));
+                final int read = channel.read(buffer, mPosition);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file at " + mPosition);
+                }
+                buffer.flip();
+                mDigest.update(buffer);
+                mPosition += read;
+            }
+        }
+    }
+
+    /**
+     * @param size the size of the download, which must have been hashed entirely
+     * @return whether the download matches the expected digest
+     */
+    synchronized boolean matches(long size) {
+        if (mPosition != size) {
+            return false;
+        }
+        if (mResult == null) {
+            mResult = mDigest.digest();
+        }
+        return Utils.toHex(mResult).equalsIgnoreCase(mExpected);
+    }
+}
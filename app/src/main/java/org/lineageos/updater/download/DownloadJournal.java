@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.updater.misc.TaskExecutors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoints of a partially downloaded file. The file is divided in blocks of
+ * BLOCK_SIZE bytes and the journal records which of them have been completely
+ * written, together with their CRC32. The journal is only written after the data
+ * it refers to has been synced to disk, so every block it lists can be trusted.
+ */
+public final class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+
+    static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final String JOURNAL_EXT = ".journal";
+    private static final int MAGIC = 0x4f544a4c;
+    private static final int VERSION = 1;
+    private static final long FLUSH_INTERVAL_MS = 5000;
+
+    private final File mDestination;
+    private final long mTotalSize;
+    private final int[] mChecksums;
+    private final boolean[] mCompleted;
+    // Guarded by this
+    private long mLastFlushMillis;
+    private boolean mFlushing;
+    // Held while writing the journal, guards mClosed
+    private final Object mFlushLock = new Object();
+    private boolean mClosed;
+
+    private DownloadJournal(File destination, long totalSize) {
+        mDestination = destination;
+        mTotalSize = totalSize;
+        int blocks = (int) ((totalSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        mChecksums = new int[blocks];
+        mCompleted = new boolean[blocks];
+    }
+
+    private static File getJournalFile(File destination) {
+        return new File(destination.getAbsolutePath() + JOURNAL_EXT);
+    }
+
+    public static boolean exists(File destination) {
+        return getJournalFile(destination).exists();
+    }
+
+    public static void delete(File destination) {
+        File journal = getJournalFile(destination);
+        if (journal.exists() && !journal.delete()) {
+            Log.e(TAG, "Could not delete " + journal.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Get the number of bytes of the given download that can be trusted.
+     *
+     * @param destination the partially downloaded file
+     * @return the number of bytes, or -1 if there's no usable journal
+     */
+    public static long getCompletedBytes(File destination) {
+        if (!exists(destination)) {
+            return -1;
+        }
+        try {
+            return load(destination).getCompletedBytes();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read journal of " + destination, e);
+            return -1;
+        }
+    }
+
+    static DownloadJournal create(File destination, long totalSize) throws IOException {
+        DownloadJournal journal = new DownloadJournal(destination, totalSize);
+        journal.flush();
+        return journal;
+    }
+
+    static DownloadJournal load(File destination) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(getJournalFile(destination))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown journal format");
+            }
+            final long totalSize = in.readLong();
+            if (totalSize <= 0 || in.readInt() != BLOCK_SIZE) {
+                throw new IOException("Invalid journal header");
+            }
+            DownloadJournal journal = new DownloadJournal(destination, totalSize);
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int index = in.readInt();
+                int checksum = in.readInt();
+                if (index < 0 || index >= journal.mCompleted.length) {
+                    throw new IOException("Invalid block " + index);
+                }
+                journal.mCompleted[index] = true;
+                journal.mChecksums[index] = checksum;
+            }
+            return journal;
+        }
+    }
+
+    long getTotalSize() {
+        return mTotalSize;
+    }
+
+    long getBlockEnd(long position) {
+        return Math.min((position / BLOCK_SIZE + 1) * BLOCK_SIZE, mTotalSize);
+    }
+
+    synchronized long getCompletedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < mCompleted.length; i++) {
+            if (mCompleted[i]) {
+                bytes += getBlockEnd((long) i * BLOCK_SIZE) - (long) i * BLOCK_SIZE;
+            }
+        }
+        return bytes;
+    }
+
+    synchronized void setBlockCompleted(long position, int checksum) {
+        int index = (int) (position / BLOCK_SIZE);
+        mCompleted[index] = true;
+        mChecksums[index] = checksum;
+    }
+
+    /**
+     * Get the byte ranges that still need to be downloaded.
+     *
+     * @return a list of {start, end} pairs, end being exclusive
+     */
+    synchronized List<long[]> getMissingRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        long[] range = null;
+        for (int i = 0; i < mCompleted.length; i++) {
+            final long start = (long) i * BLOCK_SIZE;
+            if (mCompleted[i]) {
+                range = null;
+            } else if (range == null) {
+                range = new long[] { start, getBlockEnd(start) };
+                ranges.add(range);
+            } else {
+                range[1] = getBlockEnd(start);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Re-check the last completed block before every gap, which are the ones that
+     * were being written the last time the download stopped. Blocks whose content
+     * doesn't match the recorded checksum are marked as missing.
+     */
+    synchronized void verifyTailBlocks() {
+        try (RandomAccessFile file = new RandomAccessFile(mDestination, "r")) {
+            byte[] buffer = new byte[64 * 1024];
+            for (int i = 0; i < mCompleted.length; i++) {
+                boolean tail = i + 1 == mCompleted.length || !mCompleted[i + 1];
+                if (!mCompleted[i] || !tail) {
+                    continue;
+                }
+                final long start = (long) i * BLOCK_SIZE;
+                final long end = getBlockEnd(start);
+                CRC32 crc = new CRC32();
+                file.seek(start);
+                for (long position = start; position < end; ) {
+                    int count = file.read(buffer, 0,
+                            (int) Math.min(buffer.length, end - position));
+                    if (count < 0) {
+                        break;
+                    }
+                    crc.update(buffer, 0, count);
+                    position += count;
+                }
+                if ((int) crc.getValue() != mChecksums[i]) {
+                    Log.w(TAG, "Block " + i + " of " + mDestination + " is corrupted");
+                    mCompleted[i] = false;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not verify " + mDestination, e);
+        }
+    }
+
+    /**
+     * Flush on the disk pool if the last flush is old enough. The download goes on
+     * while the file is synced, the blocks completed meanwhile are left for the next
+     * flush.
+     */
+    void maybeFlush() {
+        synchronized (this) {
+            final long millis = SystemClock.elapsedRealtime();
+            if (mFlushing || millis - mLastFlushMillis < FLUSH_INTERVAL_MS) {
+                return;
+            }
+            mFlushing = true;
+            mLastFlushMillis = millis;
+        }
+        TaskExecutors.submit(TaskExecutors.Pool.DISK, "flush journal of " +
+                mDestination.getName(), () -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not update the journal", e);
+            } finally {
+                synchronized (this) {
+                    mFlushing = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop writing the journal, waiting for the flush in progress if there's one,
+     * so that it can be deleted.
+     */
+    void close() {
+        synchronized (mFlushLock) {
+            mClosed = true;
+        }
+    }
+
+    void flush() throws IOException {
+        synchronized (mFlushLock) {
+            if (!mClosed) {
+                writeJournal();
+            }
+        }
+    }
+
+    private void writeJournal() throws IOException {
+        final int[] indexes;
+        final int[] checksums;
+        synchronized (this) {
+            mLastFlushMillis = SystemClock.elapsedRealtime();
+            int count = 0;
+            for (boolean completed : mCompleted) {
+                count += completed ? 1 : 0;
+            }
+            indexes = new int[count];
+            checksums = new int[count];
+            for (int i = 0, j = 0; i < mCompleted.length; i++) {
+                if (mCompleted[i]) {
+                    indexes[j] = i;
+                    checksums[j++] = mChecksums[i];
+                }
+            }
+        }
+
+        // The blocks we are about to record must hit the disk before the journal
+        if (mDestination.exists()) {
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                file.getFD().sync();
+            }
+        }
+
+        File journal = getJournalFile(mDestination);
+        File tmp = new File(journal.getAbsolutePath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mTotalSize);
+            out.writeInt(BLOCK_SIZE);
+            out.writeInt(indexes.length);
+            for (int i = 0; i < indexes.length; i++) {
+                out.writeInt(indexes[i]);
+                out.writeInt(checksums[i]);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(journal)) {
+            throw new IOException("Could not write " + journal.getAbsolutePath());
+        }
+    }
+}
@@ -15,35 +15,88 @@
  */
 package org.lineageos.updater.download;
 
+import android.net.Network;
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
+import org.lineageos.updater.misc.TaskExecutors;
+
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
 
 public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    // Splitting the file further than this isn't worth an additional connection
+    private static final long MIN_SEGMENT_SIZE = 8 * 1024 * 1024;
+    // Don't take over the tail of a segment if either half would be smaller than this
+    private static final long MIN_STEAL_SIZE = 2 * 1024 * 1024;
+
+    // The receive buffer grows up to hold about BUFFER_FILL_MS of data at the current speed
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final long BUFFER_FILL_MS = 100;
+
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    // Connections that don't let anything through for this long are closed and retried
+    private static final long STALL_TIMEOUT_MS = 20000;
+    private static final long STALL_CHECK_INTERVAL_MS = 5000;
+
+    // Request headers that still apply when following a redirect
+    private static final String[] FORWARDED_HEADERS = {
+            "Range", "Accept-Encoding", "If-None-Match", "If-Modified-Since" };
+
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final int mMaxConnections;
+    private final boolean mUseMirrorStriping;
+    private final boolean mUseJournal;
+    private final boolean mUseDirectBuffers;
+    private final RateLimiter mRateLimiter;
+    private final ThroughputEstimator mEstimator;
+    private final RetryPolicy mRetryPolicy;
+    private final DownloadDigest mDigest;
+    private final DownloadClient.PackageCheck mPackageCheck;
+    private volatile Network mNetwork;
 
-    private DownloadThread mDownloadThread;
+    private DownloadJournal mJournal;
+    private DownloadTask mDownloadTask;
 
     public class Headers implements DownloadClient.Headers {
         @Override
@@ -53,20 +106,38 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     }
 
-    HttpURLConnectionClient(String url, File destination,
-            DownloadClient.ProgressListener progressListener,
-            DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
-        mClient = (HttpURLConnection) new URL(url).openConnection();
-        mDestination = destination;
-        mProgressListener = progressListener;
-        mCallback = callback;
-        mUseDuplicateLinks = useDuplicateLinks;
+    HttpURLConnectionClient(DownloadClient.Builder builder) throws IOException {
+        mNetwork = builder.getNetwork();
+        mClient = ConnectionManager.open(new URL(builder.getUrl()), mNetwork);
+        if (builder.getUseCompression()) {
+            mClient.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        if (builder.getIfNoneMatch() != null) {
+            mClient.setRequestProperty("If-None-Match", builder.getIfNoneMatch());
+        }
+        if (builder.getIfModifiedSince() != null) {
+            mClient.setRequestProperty("If-Modified-Since", builder.getIfModifiedSince());
+        }
+        mDestination = builder.getDestination();
+        mProgressListener = builder.getProgressListener();
+        mCallback = builder.getDownloadCallback();
+        mUseDuplicateLinks = builder.getUseDuplicateLinks();
+        mMaxConnections = Math.max(1, builder.getMaxConnections());
+        mUseMirrorStriping = builder.getUseMirrorStriping();
+        mUseJournal = builder.getUseJournal();
+        mUseDirectBuffers = builder.getUseDirectBuffers();
+        mRateLimiter = builder.getRateLimiter();
+        mEstimator = builder.getThroughputEstimator() != null ?
+                builder.getThroughputEstimator() : new ThroughputEstimator();
+        mRetryPolicy = builder.getRetryPolicy() != null ?
+                builder.getRetryPolicy() : RetryPolicy.NONE;
+        mDigest = builder.getDigest();
+        mPackageCheck = builder.getPackageCheck();
     }
 
     @Override
     public void start() {
-        if (mDownloadThread != null) {
+        if (mDownloadTask != null) {
             Log.e(TAG, "Already downloading");
             return;
         }
@@ -75,21 +146,29 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     @Override
     public void resume() {
-        if (mDownloadThread != null) {
+        if (mDownloadTask != null) {
             Log.e(TAG, "Already downloading");
             return;
         }
         downloadFileResumeInternal();
     }
 
+    @Override
+    public void setNetwork(Network network) {
+        mNetwork = network;
+        if (mDownloadTask != null) {
+            mDownloadTask.migrate();
+        }
+    }
+
     @Override
     public void cancel() {
-        if (mDownloadThread == null) {
+        if (mDownloadTask == null) {
             Log.e(TAG, "Not downloading");
             return;
         }
-        mDownloadThread.interrupt();
-        mDownloadThread = null;
+        mDownloadTask.cancel();
+        mDownloadTask = null;
     }
 
     private void downloadFileResumeInternal() {
@@ -97,19 +176,35 @@ public class HttpURLConnectionClient implements DownloadClient {
             mCallback.onFailure(false);
             return;
         }
+        if (mUseJournal && DownloadJournal.exists(mDestination)) {
+            try {
+                mJournal = DownloadJournal.load(mDestination);
+            } catch (IOException e) {
+                // We don't know which parts of the file can be trusted
+                Log.e(TAG, "Could not load the journal, restarting the download", e);
+                DownloadJournal.delete(mDestination);
+                downloadFileInternalCommon(false);
+                return;
+            }
+            // The request is made once the journal was checked by the task
+            downloadFileInternalCommon(true);
+            return;
+        }
         long offset = mDestination.length();
+        // Offsets are only meaningful in the uncompressed content
+        mClient.setRequestProperty("Accept-Encoding", "identity");
         mClient.setRequestProperty("Range", "bytes=" + offset + "-");
         downloadFileInternalCommon(true);
     }
 
     private void downloadFileInternalCommon(boolean resume) {
-        if (mDownloadThread != null) {
+        if (mDownloadTask != null) {
             Log.wtf(TAG, "Already downloading");
             return;
         }
 
-        mDownloadThread = new DownloadThread(resume);
-        mDownloadThread.start();
+        mDownloadTask = new DownloadTask(resume);
+        mDownloadTask.start();
     }
 
     private static boolean isSuccessCode(int statusCode) {
@@ -124,62 +219,467 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
-    private class DownloadThread extends Thread {
+    private static boolean isNotModifiedCode(int statusCode) {
+        return statusCode == 304;
+    }
+
+    /**
+     * A connection fetching segments from one of the available mirrors.
+     */
+    private static class Worker {
+        private URL mUrl;
+        // Set by whoever gets to it first, the worker itself or the download giving up on it
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+        private Future<?> mFuture;
+        private long mStartMillis = -1;
+        private long mBytes;
+        private volatile long mSpeed = -1;
+        // Consecutive errors that didn't let any byte through
+        private int mFailures;
+        // The connection being read from, for the watchdog to close if it stalls
+        private HttpURLConnection mConnection;
+        private volatile long mProgressMillis;
+        private volatile boolean mStalled;
+        private volatile boolean mMigrating;
+
+        private Worker(URL url) {
+            mUrl = url;
+        }
+
+        private synchronized void watch(HttpURLConnection connection) {
+            mConnection = connection;
+            mProgressMillis = SystemClock.elapsedRealtime();
+            if (connection != null) {
+                // Whatever happened to the previous connection was dealt with
+                mStalled = false;
+                mMigrating = false;
+            }
+        }
+
+        private void onProgress() {
+            mProgressMillis = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Close the connection if nothing came through it for too long, which makes
+         * the read blocked on it fail.
+         *
+         * @return whether the connection was closed
+         */
+        private boolean disconnectIfStalled(long millis) {
+            final HttpURLConnection connection;
+            synchronized (this) {
+                if (mConnection == null || millis - mProgressMillis < STALL_TIMEOUT_MS) {
+                    return false;
+                }
+                connection = mConnection;
+                mConnection = null;
+                mStalled = true;
+            }
+            connection.disconnect();
+            return true;
+        }
+
+        /**
+         * Close the connection so that the worker opens a new one on the current
+         * network.
+         */
+        private void disconnectForMigration() {
+            final HttpURLConnection connection;
+            synchronized (this) {
+                if (mConnection == null) {
+                    return;
+                }
+                connection = mConnection;
+                mConnection = null;
+                mMigrating = true;
+            }
+            connection.disconnect();
+        }
+
+        private void update(int count) {
+            final long millis = SystemClock.elapsedRealtime();
+            if (mStartMillis < 0) {
+                mStartMillis = millis;
+            }
+            mBytes += count;
+            final long delta = millis - mStartMillis;
+            if (delta > 500) {
+                mSpeed = (mBytes * 1000) / delta;
+            }
+        }
+    }
+
+    private static boolean isEncoded(HttpURLConnection connection) {
+        String encoding = connection.getContentEncoding();
+        return encoding != null && !"identity".equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * Get the body of the response, decompressing it if needed.
+     */
+    private static InputStream getDecodedInputStream(HttpURLConnection connection)
+            throws IOException {
+        InputStream inputStream = connection.getInputStream();
+        if (!isEncoded(connection)) {
+            return inputStream;
+        }
+        String encoding = connection.getContentEncoding();
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(inputStream, MIN_BUFFER_SIZE);
+        }
+        inputStream.close();
+        throw new IOException("Unsupported content encoding " + encoding);
+    }
+
+    /**
+     * Read into a heap buffer, straight to its backing array.
+     */
+    private static int readToArray(InputStream inputStream, ByteBuffer buffer)
+            throws IOException {
+        int read = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                buffer.remaining());
+        if (read > 0) {
+            buffer.position(buffer.position() + read);
+        }
+        return read;
+    }
+
+    /**
+     * @return the delay in milliseconds requested by a Retry-After header, 0 if none
+     */
+    private static long parseRetryAfter(String retryAfter) {
+        if (retryAfter != null) {
+            try {
+                return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                // An HTTP date, not worth the trouble
+            }
+        }
+        return 0;
+    }
+
+    private static long alignToBlock(long position) {
+        return position - (position % DownloadJournal.BLOCK_SIZE);
+    }
+
+    private static long parseContentRangeTotal(String contentRange) {
+        if (contentRange != null) {
+            int index = contentRange.lastIndexOf('/');
+            if (index >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(index + 1).trim());
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Invalid Content-Range " + contentRange);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reserve the blocks of the whole file upfront, so that we fail right away if
+     * there's not enough space and the file doesn't get fragmented as it grows.
+     * The file might get longer than the data it contains, so this is only safe
+     * if the progress is tracked by a journal and not by the length of the file.
+     */
+    private static void preallocate(File destination, long size) throws IOException {
+        File parent = destination.getAbsoluteFile().getParentFile();
+        if (parent != null && parent.getUsableSpace() < size - destination.length()) {
+            throw new IOException("Not enough space to download " + size + " bytes");
+        }
+        try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+            Os.posix_fallocate(file.getFD(), 0, size);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("Not enough space to download " + size + " bytes", e);
+            }
+            // Not supported by every filesystem, just write the file as usual
+            Log.w(TAG, "Could not preallocate " + destination, e);
+        }
+    }
+
+    /**
+     * A byte range of the destination file, written sequentially from mStart.
+     * mEnd is exclusive and is -1 if the size of the file is unknown. Writes and
+     * changes of mEnd are done while holding the lock of the segment.
+     */
+    private static class Segment {
+        private final long mStart;
+        private volatile long mEnd;
+        private volatile long mPosition;
+        private volatile Worker mOwner;
+
+        // Checksum of the bytes written since mChecksumStart, used for the journal
+        private final CRC32 mChecksum = new CRC32();
+        private long mChecksumStart;
+
+        private Segment(long start, long end) {
+            mStart = start;
+            mEnd = end;
+            mPosition = start;
+            mChecksumStart = start;
+        }
+
+        private boolean isComplete() {
+            return mEnd >= 0 && mPosition >= mEnd;
+        }
+    }
+
+    private class DownloadTask implements Runnable {
 
         private long mTotalBytes = 0;
         private long mTotalBytesRead = 0;
 
-        private long mCurSampleBytes = 0;
-        private long mLastMillis = 0;
-        private long mSpeed = -1;
-        private long mEta = -1;
+        private long mLastReportMillis = 0;
 
         private final boolean mResume;
 
-        private DownloadThread(boolean resume) {
+        private final Object mProgressLock = new Object();
+        // Also guards mPendingSegments
+        private final List<Segment> mSegments = new ArrayList<>();
+        private final Deque<Segment> mPendingSegments = new ArrayDeque<>();
+        private final List<Worker> mWorkers = new ArrayList<>();
+        private final List<URL> mMirrors = new ArrayList<>();
+        // Whether mClient went back to the connection pool and must not be disconnected
+        private boolean mClientReleased = false;
+        private volatile boolean mAborted = false;
+        private final Object mAbortLock = new Object();
+        private volatile IOException mWorkerError;
+        // Primary worker included, the ones started by this task only
+        private final List<Worker> mWatchedWorkers = new CopyOnWriteArrayList<>();
+        private final List<URL> mUrls = new ArrayList<>();
+        private final AtomicInteger mStalls = new AtomicInteger();
+        private Future<?> mWatchdog;
+
+        // Set by whoever gets to it first, the task itself or cancel()
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+        private volatile Future<?> mFuture;
+
+        private DownloadTask(boolean resume) {
             mResume = resume;
         }
 
-        private void calculateSpeed(boolean justResumed) {
-            final long millis = SystemClock.elapsedRealtime();
-            if (justResumed) {
-                // If we don't start over with these after resumption, we get huge numbers for
-                // ETA since the delta will grow, resulting in a very low speed
-                mLastMillis = millis;
-                mSpeed = -1; // we don't want the moving avg with values from who knows when
-
-                // need to do this as well, otherwise the second time we call calculateSpeed(),
-                // the difference (mTotalBytesRead - mCurSampleBytes) will be larger than expected,
-                // resulting in a higher speed calculation
-                mCurSampleBytes = mTotalBytesRead;
+        private void start() {
+            mFuture = TaskExecutors.submit(TaskExecutors.Pool.NETWORK,
+                    "download " + mDestination.getName(), this);
+        }
+
+        private void cancel() {
+            if (mClaimed.compareAndSet(false, true)) {
+                // It never started, so nobody else is going to report it
+                mFuture.cancel(false);
+                mCallback.onFailure(true);
+            } else {
+                mFuture.cancel(true);
+            }
+        }
+
+        private boolean isInterrupted() {
+            return Thread.currentThread().isInterrupted();
+        }
+
+        private void reportProgress() {
+            if (mProgressListener == null) {
                 return;
             }
-            final long delta = millis - mLastMillis;
-            if (delta > 500) {
-                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
-                if (mSpeed == -1) {
-                    mSpeed = curSpeed;
-                } else {
-                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+            final long speed = mEstimator.getSpeed();
+            final long remaining = mTotalBytes - mTotalBytesRead;
+            long eta = -1;
+            long minEta = -1;
+            long maxEta = -1;
+            if (mTotalBytes > 0) {
+                if (speed > 0) {
+                    eta = remaining / speed;
+                }
+                if (mEstimator.getHighSpeed() > 0) {
+                    minEta = remaining / mEstimator.getHighSpeed();
+                }
+                if (mEstimator.getLowSpeed() > 0) {
+                    maxEta = remaining / mEstimator.getLowSpeed();
                 }
+            }
+            mProgressListener.update(mTotalBytesRead, mTotalBytes, speed, eta, minEta, maxEta);
+        }
 
-                mLastMillis = millis;
-                mCurSampleBytes = mTotalBytesRead;
+        private void onBytesRead(int count) {
+            synchronized (mProgressLock) {
+                mTotalBytesRead += count;
+                final long millis = SystemClock.elapsedRealtime();
+                mEstimator.add(count, millis);
+                if (millis - mLastReportMillis >= PROGRESS_INTERVAL_MS) {
+                    mLastReportMillis = millis;
+                    reportProgress();
+                }
+            }
+            if (mJournal != null) {
+                mJournal.maybeFlush();
             }
         }
 
-        private void calculateEta() {
-            if (mSpeed > 0) {
-                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+        /**
+         * Feed the bytes just written at position to the checksum of the segment and
+         * record the blocks they complete in the journal.
+         */
+        private void updateJournal(Segment segment, ByteBuffer data, long position) {
+            final int limit = data.limit();
+            while (data.hasRemaining()) {
+                final long blockEnd = mJournal.getBlockEnd(position);
+                final int len = (int) Math.min(data.remaining(), blockEnd - position);
+                data.limit(data.position() + len);
+                segment.mChecksum.update(data);
+                data.limit(limit);
+                position += len;
+                if (position == blockEnd) {
+                    // Only blocks we wrote from their first byte have a usable checksum
+                    if (segment.mChecksumStart == alignToBlock(blockEnd - 1)) {
+                        mJournal.setBlockCompleted(segment.mChecksumStart,
+                                (int) segment.mChecksum.getValue());
+                    }
+                    segment.mChecksum.reset();
+                    segment.mChecksumStart = blockEnd;
+                }
             }
         }
 
+        private boolean isAborted() {
+            return mAborted || Thread.currentThread().isInterrupted();
+        }
+
+        private void abort() {
+            synchronized (mAbortLock) {
+                mAborted = true;
+                mAbortLock.notifyAll();
+            }
+        }
+
+        /**
+         * Wait for the given time, unless the download is aborted meanwhile.
+         *
+         * @return whether the download can go on
+         */
+        private boolean backOff(long millis) {
+            final long deadline = SystemClock.elapsedRealtime() + millis;
+            synchronized (mAbortLock) {
+                long left;
+                while (!isAborted() && (left = deadline - SystemClock.elapsedRealtime()) > 0) {
+                    try {
+                        mAbortLock.wait(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            return !isAborted();
+        }
+
+        /**
+         * Check whether the worker should try again after the given error and wait
+         * as long as the retry policy says if so.
+         */
+        private boolean shouldRetry(Worker worker, IOException e) {
+            if (worker.mMigrating) {
+                worker.mMigrating = false;
+                // The connection was fine, go on right away
+                return !isAborted();
+            }
+            if (worker.mStalled) {
+                worker.mStalled = false;
+                switchMirror(worker);
+            }
+            if (isAborted() || !mRetryPolicy.shouldRetry(e, worker.mFailures)) {
+                return false;
+            }
+            final long delay = mRetryPolicy.getDelayMillis(worker.mFailures++);
+            Log.d(TAG, "Retrying in " + delay + "ms, attempt " + worker.mFailures);
+            return backOff(delay);
+        }
+
+        /**
+         * Move the worker to the next mirror, if there are any.
+         */
+        private void switchMirror(Worker worker) {
+            final int index = mUrls.indexOf(worker.mUrl);
+            if (mUrls.size() > 1 && index >= 0) {
+                worker.mUrl = mUrls.get((index + 1) % mUrls.size());
+                Log.d(TAG, "Switching to " + worker.mUrl);
+            }
+        }
+
+        private void migrate() {
+            for (Worker worker : mWatchedWorkers) {
+                worker.disconnectForMigration();
+            }
+        }
+
+        private void checkStalls() {
+            final long millis = SystemClock.elapsedRealtime();
+            for (Worker worker : mWatchedWorkers) {
+                if (worker.disconnectIfStalled(millis)) {
+                    Log.w(TAG, "No progress from " + worker.mUrl + " in " +
+                            (millis - worker.mProgressMillis) + "ms, stall " +
+                            mStalls.incrementAndGet());
+                }
+            }
+        }
+
+        /**
+         * Connect the client, opening a new connection as long as the retry policy
+         * allows it for the errors that look temporary.
+         *
+         * @return the response code
+         */
+        private int connectClient() throws IOException {
+            for (int failures = 0; ; failures++) {
+                long retryAfter = 0;
+                try {
+                    mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+                    mClient.connect();
+                    final int responseCode = mClient.getResponseCode();
+                    if (!mRetryPolicy.shouldRetry(responseCode, failures)) {
+                        return responseCode;
+                    }
+                    Log.e(TAG, "The server replied with code " + responseCode);
+                    retryAfter = parseRetryAfter(mClient.getHeaderField("Retry-After"));
+                    releaseClient();
+                } catch (IOException e) {
+                    if (isAborted() || !mRetryPolicy.shouldRetry(e, failures)) {
+                        throw e;
+                    }
+                    Log.e(TAG, "Could not connect to " + mClient.getURL(), e);
+                    mClient.disconnect();
+                }
+                final long delay = Math.max(mRetryPolicy.getDelayMillis(failures),
+                        Math.min(retryAfter, mRetryPolicy.getMaxDelayMillis()));
+                Log.d(TAG, "Retrying in " + delay + "ms, attempt " + (failures + 1));
+                if (!backOff(delay)) {
+                    throw new InterruptedIOException("Aborted while waiting to retry");
+                }
+                changeClientUrl(mClient.getURL());
+            }
+        }
+
+        private void releaseClient() {
+            ConnectionManager.release(mClient);
+            mClientReleased = true;
+        }
+
+        /**
+         * Replace the current connection with a new one to the given url. The current
+         * connection must have already been released or disconnected.
+         */
         private void changeClientUrl(URL newUrl) throws IOException {
-            String range = mClient.getRequestProperty("Range");
-            mClient.disconnect();
-            mClient = (HttpURLConnection) newUrl.openConnection();
-            if (range != null) {
-                mClient.setRequestProperty("Range", range);
+            Map<String, String> properties = new HashMap<>();
+            for (String name : FORWARDED_HEADERS) {
+                String value = mClient.getRequestProperty(name);
+                if (value != null) {
+                    properties.put(name, value);
+                }
+            }
+            mClient = ConnectionManager.open(newUrl, mNetwork);
+            mClientReleased = false;
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                mClient.setRequestProperty(property.getKey(), property.getValue());
             }
         }
 
@@ -222,6 +722,8 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
 
             String newUrl = mClient.getHeaderField("Location");
+            // The next hop is likely on the same server, keep the connection
+            releaseClient();
             for (;;) {
                 try {
                     URL url = new URL(newUrl);
@@ -232,13 +734,22 @@ public class HttpURLConnectionClient implements DownloadClient {
                     }
                     Log.d(TAG, "Downloading from " + newUrl);
                     changeClientUrl(url);
-                    mClient.setConnectTimeout(5000);
                     mClient.connect();
-                    if (!isSuccessCode(mClient.getResponseCode())) {
-                        throw new IOException("Server replied with " + mClient.getResponseCode());
+                    final int responseCode = mClient.getResponseCode();
+                    if (!isSuccessCode(responseCode) && !isNotModifiedCode(responseCode)) {
+                        throw new IOException("Server replied with " + responseCode);
+                    }
+                    while (duplicates != null && !duplicates.isEmpty()) {
+                        URL mirror = new URL(duplicates.poll().mUrl);
+                        if (mirror.getProtocol().equals(protocol)) {
+                            mMirrors.add(mirror);
+                        }
                     }
                     return;
                 } catch (IOException e) {
+                    if (!mClientReleased) {
+                        mClient.disconnect();
+                    }
                     if (duplicates != null && !duplicates.isEmpty()) {
                         DuplicateLink link = duplicates.poll();
                         if (link != null) {
@@ -253,66 +764,694 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
+        /**
+         * Split [offset, total) in up to mMaxConnections segments. The first one is
+         * served by the connection we already opened, the others by range requests.
+         */
+        private void planSegments(long offset, long total, boolean splittable) {
+            int count = 1;
+            if (splittable && total > offset) {
+                count = (int) Math.max(1,
+                        Math.min(mMaxConnections, (total - offset) / MIN_SEGMENT_SIZE));
+            }
+            if (count == 1) {
+                mSegments.add(new Segment(offset, total));
+                return;
+            }
+            final long size = (total - offset) / count;
+            for (int i = 0; i < count; i++) {
+                // Keep the boundaries aligned so that each block has a single writer
+                long start = i == 0 ? offset : alignToBlock(offset + i * size);
+                long end = i == count - 1 ? total : alignToBlock(offset + (i + 1) * size);
+                Segment segment = new Segment(start, end);
+                mSegments.add(segment);
+                if (i > 0) {
+                    mPendingSegments.add(segment);
+                }
+            }
+            Log.d(TAG, "Downloading with " + count + " connections");
+        }
+
+        /**
+         * Queue the ranges the journal reports as missing. The first one is served by
+         * the connection we already opened, the others are split further by idle
+         * workers as needed.
+         */
+        private int planJournalSegments() {
+            for (long[] range : mJournal.getMissingRanges()) {
+                Segment segment = new Segment(range[0], range[1]);
+                if (!mSegments.isEmpty()) {
+                    mPendingSegments.add(segment);
+                }
+                mSegments.add(segment);
+            }
+            return mMaxConnections - 1;
+        }
+
+        private Segment pollPendingSegment(Worker worker) {
+            synchronized (mSegments) {
+                Segment segment = mPendingSegments.poll();
+                if (segment != null) {
+                    segment.mOwner = worker;
+                }
+                return segment;
+            }
+        }
+
+        /**
+         * Take over the tail of the segment that is expected to take the longest to
+         * complete. The split is weighted by the measured speed of the two workers,
+         * so slow mirrors end up with smaller ranges.
+         */
+        private Segment stealSegment(Worker thief) {
+            synchronized (mSegments) {
+                Segment victim = null;
+                long victimMillis = -1;
+                for (Segment segment : mSegments) {
+                    Worker owner = segment.mOwner;
+                    if (owner == null || owner == thief || segment.mEnd < 0 ||
+                            segment.isComplete()) {
+                        continue;
+                    }
+                    long millis = ((segment.mEnd - segment.mPosition) * 1000) /
+                            Math.max(owner.mSpeed, 1);
+                    if (millis > victimMillis) {
+                        victim = segment;
+                        victimMillis = millis;
+                    }
+                }
+                if (victim == null) {
+                    return null;
+                }
+                synchronized (victim) {
+                    final long remaining = victim.mEnd - victim.mPosition;
+                    final long ownerSpeed = victim.mOwner.mSpeed;
+                    final long thiefSpeed = thief.mSpeed;
+                    long share = remaining / 2;
+                    if (ownerSpeed > 0 && thiefSpeed > 0) {
+                        share = (remaining / (ownerSpeed + thiefSpeed)) * thiefSpeed;
+                    }
+                    final long split = alignToBlock(victim.mEnd - share);
+                    if (split - victim.mPosition < MIN_STEAL_SIZE ||
+                            victim.mEnd - split < MIN_STEAL_SIZE) {
+                        return null;
+                    }
+                    Segment segment = new Segment(split, victim.mEnd);
+                    segment.mOwner = thief;
+                    victim.mEnd = segment.mStart;
+                    mSegments.add(segment);
+                    return segment;
+                }
+            }
+        }
+
+        private void requeueSegment(Segment segment) {
+            synchronized (mSegments) {
+                segment.mOwner = null;
+                mPendingSegments.addFirst(segment);
+            }
+        }
+
+        private boolean hasPendingSegments() {
+            synchronized (mSegments) {
+                return !mPendingSegments.isEmpty();
+            }
+        }
+
+        private int getBufferSize(Worker worker) {
+            final long target = (worker.mSpeed * BUFFER_FILL_MS) / 1000;
+            int size = MIN_BUFFER_SIZE;
+            while (size < MAX_BUFFER_SIZE && size < target) {
+                size <<= 1;
+            }
+            return size;
+        }
+
+        /**
+         * Read into the buffer, no more than what the rate limiter allows if there's one.
+         */
+        private int read(ReadableByteChannel source, InputStream inputStream,
+                ByteBuffer buffer) throws IOException {
+            if (mRateLimiter == null) {
+                return source != null ? source.read(buffer) : readToArray(inputStream, buffer);
+            }
+            final int limit = buffer.limit();
+            final int granted = mRateLimiter.acquire(buffer.remaining());
+            int read = 0;
+            try {
+                buffer.limit(buffer.position() + granted);
+                read = source != null ? source.read(buffer) : readToArray(inputStream, buffer);
+            } finally {
+                buffer.limit(limit);
+                mRateLimiter.release(granted - Math.max(read, 0));
+            }
+            return read;
+        }
+
+        /**
+         * Copy the stream to the segment. Reads are coalesced in a buffer that grows with
+         * the measured speed of the worker, and the buffer is only written once it's
+         * full and ends at a multiple of its size. Buffers come from a pool shared by
+         * all the downloads and are direct ones if requested, so that they can be handed
+         * to the FileChannel without another copy.
+         */
+        private void copy(InputStream inputStream, Segment segment, Worker worker)
+                throws IOException {
+            final ReadableByteChannel source = mUseDirectBuffers ?
+                    Channels.newChannel(inputStream) : null;
+            ByteBuffer buffer = BufferPool.acquire(MIN_BUFFER_SIZE, mUseDirectBuffers);
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw");
+                 FileChannel channel = file.getChannel()) {
+                boolean eof = false;
+                while (!eof && !isAborted()) {
+                    final int size = getBufferSize(worker);
+                    if (size > buffer.capacity()) {
+                        BufferPool.release(buffer);
+                        buffer = BufferPool.acquire(size, mUseDirectBuffers);
+                    }
+                    final long end = segment.mEnd;
+                    int len = buffer.capacity() - (int) (segment.mPosition % buffer.capacity());
+                    if (end >= 0) {
+                        if (segment.mPosition >= end) {
+                            break;
+                        }
+                        len = (int) Math.min(len, end - segment.mPosition);
+                    }
+                    buffer.clear();
+                    buffer.limit(len);
+                    while (buffer.hasRemaining() && !isAborted()) {
+                        final int read = read(source, inputStream, buffer);
+                        worker.onProgress();
+                        if (read < 0) {
+                            eof = true;
+                            break;
+                        }
+                    }
+                    buffer.flip();
+                    if (buffer.hasRemaining()) {
+                        final int count;
+                        synchronized (segment) {
+                            if (segment.mEnd >= 0) {
+                                // The tail of the segment might have been stolen meanwhile
+                                buffer.limit((int) Math.min(buffer.limit(),
+                                        segment.mEnd - segment.mPosition));
+                            }
+                            count = buffer.remaining();
+                            final ByteBuffer data = buffer.duplicate();
+                            long position = segment.mPosition;
+                            while (buffer.hasRemaining()) {
+                                position += channel.write(buffer, position);
+                            }
+                            if (mDigest != null) {
+                                mDigest.update(data, segment.mPosition);
+                            }
+                            if (mJournal != null) {
+                                updateJournal(segment, data, segment.mPosition);
+                            }
+                            segment.mPosition = position;
+                        }
+                        worker.update(count);
+                        onBytesRead(count);
+                    }
+                    if (eof && end < 0) {
+                        // The size wasn't known, the end of the stream is the end of the file
+                        segment.mEnd = segment.mPosition;
+                    }
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+            if (!isAborted() && !segment.isComplete()) {
+                throw new EOFException("Unexpected end of stream at " + segment.mPosition);
+            }
+            if (mDigest != null && !isAborted()) {
+                // What other segments wrote past this one might be next
+                catchUpDigest();
+            }
+        }
+
+        /**
+         * @return the end of the part of the file written without gaps so far
+         */
+        private long getWrittenPrefix() {
+            synchronized (mSegments) {
+                long prefix = Long.MAX_VALUE;
+                long end = 0;
+                for (Segment segment : mSegments) {
+                    synchronized (segment) {
+                        if (!segment.isComplete()) {
+                            prefix = Math.min(prefix, segment.mPosition);
+                        }
+                        end = Math.max(end, segment.mEnd);
+                    }
+                }
+                return prefix != Long.MAX_VALUE ? prefix : end;
+            }
+        }
+
+        /**
+         * Hash the bytes that couldn't be hashed as they were written, because what
+         * came before them wasn't there yet.
+         */
+        private void catchUpDigest() throws IOException {
+            final long prefix = getWrittenPrefix();
+            if (prefix > mDigest.getPosition()) {
+                mDigest.catchUp(mDestination, prefix);
+            }
+        }
+
+        /**
+         * Run the package check on the tail of the zip, which takes a couple of small
+         * requests. The download goes on if it can't be done.
+         *
+         * @return false if the callback was told the download is over
+         */
+        private boolean checkPackage() {
+            boolean passed;
+            try {
+                PartialZipFile zip = new PartialZipFile(mClient.getURL().toString(), mNetwork);
+                passed = mPackageCheck.check(zip);
+            } catch (IOException e) {
+                if (!isInterrupted()) {
+                    Log.w(TAG, "Could not check the package, downloading it anyway", e);
+                }
+                passed = true;
+            }
+            if (isInterrupted()) {
+                mCallback.onFailure(true);
+                return false;
+            }
+            if (!passed) {
+                Log.e(TAG, "The package didn't pass the check, not downloading it");
+                mCallback.onPackageRejected();
+                return false;
+            }
+            return true;
+        }
+
+        private void downloadSegment(Segment segment, Worker worker) throws IOException {
+            HttpURLConnection connection = ConnectionManager.open(worker.mUrl, mNetwork);
+            boolean reusable = false;
+            worker.watch(connection);
+            try {
+                final long end = segment.mEnd;
+                connection.setRequestProperty("Range",
+                        "bytes=" + segment.mPosition + "-" + (end - 1));
+                connection.connect();
+                int responseCode = connection.getResponseCode();
+                if (!isPartialContentCode(responseCode)) {
+                    throw new ResponseCodeException(responseCode,
+                            "Server replied with " + responseCode + " to a range request");
+                }
+                copy(connection.getInputStream(), segment, worker);
+                // The response isn't over if someone else took the tail of the segment
+                reusable = !isAborted() && segment.mEnd == end;
+            } finally {
+                worker.watch(null);
+                if (reusable) {
+                    ConnectionManager.release(connection);
+                } else {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        /**
+         * Download segments until there's nothing left to do. Errors are retried
+         * according to the retry policy, from where the segment got to. Past that,
+         * secondary workers give their segment back and stop, since their mirror is
+         * likely unusable, while errors of the primary one abort the whole download.
+         */
+        private void downloadPendingSegments(Worker worker, boolean primary) {
+            while (!isAborted()) {
+                Segment segment = pollPendingSegment(worker);
+                if (segment == null) {
+                    segment = stealSegment(worker);
+                }
+                if (segment == null) {
+                    return;
+                }
+                final long position = segment.mPosition;
+                try {
+                    downloadSegment(segment, worker);
+                    worker.mFailures = 0;
+                } catch (IOException e) {
+                    if (isAborted()) {
+                        return;
+                    }
+                    Log.e(TAG, "Error downloading from " + worker.mUrl + " at " +
+                            segment.mPosition, e);
+                    if (segment.mPosition > position) {
+                        worker.mFailures = 0;
+                    }
+                    if (shouldRetry(worker, e)) {
+                        requeueSegment(segment);
+                        continue;
+                    }
+                    if (primary) {
+                        mWorkerError = e;
+                        abort();
+                    } else {
+                        requeueSegment(segment);
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void startWorkers(URL primaryUrl, int count) {
+            List<URL> urls = new ArrayList<>();
+            urls.add(primaryUrl);
+            if (mUseMirrorStriping) {
+                urls.addAll(mMirrors);
+            }
+            // Stalled workers can always fail over to the other mirrors
+            mUrls.add(primaryUrl);
+            mUrls.addAll(mMirrors);
+            for (int i = 1; i <= count; i++) {
+                Worker worker = new Worker(urls.get(i % urls.size()));
+                mWatchedWorkers.add(worker);
+                worker.mFuture = TaskExecutors.submit(TaskExecutors.Pool.TRANSFER,
+                        "download segments " + mDestination.getName(), () -> {
+                            if (worker.mClaimed.compareAndSet(false, true)) {
+                                downloadPendingSegments(worker, false);
+                            }
+                        });
+                mWorkers.add(worker);
+            }
+            if (urls.size() > 1) {
+                Log.d(TAG, "Striping the download across " +
+                        Math.min(urls.size(), count + 1) + " mirrors");
+            }
+        }
+
+        /**
+         * Wait for the workers that are running. The ones still queued in the pool
+         * are dropped instead, their segments are still pending and can be picked up
+         * by the caller, so that we never wait for a worker that can't start.
+         */
+        private void joinWorkers() {
+            boolean interrupted = false;
+            for (Worker worker : mWorkers) {
+                if (worker.mClaimed.compareAndSet(false, true)) {
+                    worker.mFuture.cancel(false);
+                    continue;
+                }
+                for (;;) {
+                    try {
+                        worker.mFuture.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        abort();
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Worker failed", e.getCause());
+                        break;
+                    }
+                }
+            }
+            mWorkers.clear();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Drop whatever was written after the first hole so that the length of the
+         * destination can be used to resume the download.
+         */
+        private void truncateToCompletedPrefix() {
+            long prefix = -1;
+            mSegments.sort(Comparator.comparingLong(segment -> segment.mStart));
+            for (Segment segment : mSegments) {
+                if (!segment.isComplete()) {
+                    prefix = segment.mPosition;
+                    break;
+                }
+            }
+            if (prefix < 0) {
+                return;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                if (file.length() > prefix) {
+                    file.setLength(prefix);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not truncate " + mDestination, e);
+            }
+        }
+
+        private boolean isComplete() {
+            for (Segment segment : mSegments) {
+                if (!segment.isComplete()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         @Override
         public void run() {
-            boolean justResumed = false;
+            if (!mClaimed.compareAndSet(false, true)) {
+                // Cancelled before it started
+                return;
+            }
+            if (mResume && mJournal != null) {
+                // Reads back up to a few blocks, which is why it's done here
+                mJournal.verifyTailBlocks();
+                List<long[]> missing = mJournal.getMissingRanges();
+                if (!missing.isEmpty()) {
+                    mClient.setRequestProperty("Accept-Encoding", "identity");
+                    mClient.setRequestProperty("Range", "bytes=" + missing.get(0)[0] + "-");
+                }
+            }
+            if (mJournal != null && mJournal.getMissingRanges().isEmpty()) {
+                Log.d(TAG, "The journal reports the download as complete");
+                DownloadJournal.delete(mDestination);
+                reportCompletion(mJournal.getTotalSize());
+                return;
+            }
+            if (!mResume && mPackageCheck != null && !checkPackage()) {
+                return;
+            }
+
             try {
-                mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
-                mClient.connect();
-                int responseCode = mClient.getResponseCode();
+                int responseCode = connectClient();
+
+                if (isNotModifiedCode(responseCode)) {
+                    Log.d(TAG, "The server copy didn't change");
+                    releaseClient();
+                    mCallback.onNotModified();
+                    return;
+                }
 
                 if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
                     handleDuplicateLinks();
                     responseCode = mClient.getResponseCode();
+                    if (isNotModifiedCode(responseCode)) {
+                        Log.d(TAG, "The server copy didn't change");
+                        releaseClient();
+                        mCallback.onNotModified();
+                        return;
+                    }
                 }
 
                 mCallback.onResponse(new Headers());
+                // Whatever the estimator measured before doesn't include the time since
+                mEstimator.start(SystemClock.elapsedRealtime());
 
                 if (mResume && isPartialContentCode(responseCode)) {
-                    justResumed = true;
-                    mTotalBytesRead = mDestination.length();
+                    if (mJournal != null) {
+                        mTotalBytesRead = mJournal.getCompletedBytes();
+                    } else {
+                        mTotalBytesRead = mDestination.length();
+                    }
                     Log.d(TAG, "The server fulfilled the partial content request");
                 } else if (mResume || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
+                    releaseClient();
                     mCallback.onFailure(isInterrupted());
                     return;
                 }
 
-                try (
-                        InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
-                ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
-                    int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed(justResumed);
-                        calculateEta();
-                        justResumed = false; // otherwise we will never get speed and ETA again
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
-                        }
+                // The length of compressed content tells nothing about the file
+                final long contentLength = isEncoded(mClient) ?
+                        -1 : mClient.getContentLengthLong();
+                mTotalBytes = contentLength >= 0 ? contentLength + mTotalBytesRead : -1;
+                final Worker primary = new Worker(mClient.getURL());
+                boolean splittable = mMaxConnections > 1 && mTotalBytes > 0 &&
+                        (isPartialContentCode(responseCode) ||
+                                "bytes".equalsIgnoreCase(mClient.getHeaderField("Accept-Ranges")));
+
+                if (!mResume) {
+                    try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                        file.setLength(0);
                     }
-                    if (mProgressListener != null) {
-                        mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+                    if (mDigest != null) {
+                        mDigest.reset();
                     }
+                    if (mUseJournal && mTotalBytes > 0) {
+                        // The journal has to be there first, a full length file without
+                        // one would be taken for a complete download
+                        mJournal = DownloadJournal.create(mDestination, mTotalBytes);
+                        preallocate(mDestination, mTotalBytes);
+                    }
+                }
 
-                    outputStream.flush();
+                int workers;
+                if (mResume && mJournal != null) {
+                    mTotalBytes = mJournal.getTotalSize();
+                    long total = parseContentRangeTotal(mClient.getHeaderField("Content-Range"));
+                    if (total != mJournal.getTotalSize()) {
+                        // The file changed on the server, start over the next time
+                        Log.e(TAG, "Expected " + mJournal.getTotalSize() + " bytes, got " + total);
+                        DownloadJournal.delete(mDestination);
+                        mJournal = null;
+                        try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                            file.setLength(0);
+                        }
+                        if (mDigest != null) {
+                            mDigest.reset();
+                        }
+                        mCallback.onFailure(isInterrupted());
+                        return;
+                    }
+                    preallocate(mDestination, mTotalBytes);
+                    workers = planJournalSegments();
+                } else {
+                    planSegments(mTotalBytesRead, mTotalBytes, splittable);
+                    workers = mSegments.size() - 1;
+                }
+                if (mDigest != null) {
+                    // Only needed if the digest didn't follow the download so far
+                    catchUpDigest();
+                }
+                mSegments.get(0).mOwner = primary;
+                mWatchedWorkers.add(primary);
+                mWatchdog = TaskExecutors.schedule("download watchdog " + mDestination.getName(),
+                        this::checkStalls, STALL_CHECK_INTERVAL_MS);
+                startWorkers(primary.mUrl, workers);
 
-                    if (isInterrupted()) {
-                        mCallback.onFailure(true);
+                final InputStream inputStream = getDecodedInputStream(mClient);
+                boolean reusable = false;
+                IOException copyError = null;
+                primary.watch(mClient);
+                try {
+                    copy(inputStream, mSegments.get(0), primary);
+                    // Otherwise the rest of the response is the body of the other segments
+                    reusable = !isAborted() && mSegments.get(0).mEnd == mTotalBytes;
+                } catch (IOException e) {
+                    if (!isAborted()) {
+                        copyError = e;
+                    }
+                } finally {
+                    primary.watch(null);
+                    if (reusable) {
+                        releaseClient();
                     } else {
-                        mCallback.onSuccess();
+                        mClient.disconnect();
+                    }
+                    try {
+                        // The connection is done with, this only frees the decoder
+                        inputStream.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+                if (copyError != null) {
+                    // Without a size, there's no range to request
+                    if (mTotalBytes <= 0) {
+                        throw copyError;
+                    }
+                    Log.e(TAG, "Error downloading file at " + mSegments.get(0).mPosition,
+                            copyError);
+                    if (!shouldRetry(primary, copyError)) {
+                        throw copyError;
                     }
+                    requeueSegment(mSegments.get(0));
                 }
+                do {
+                    downloadPendingSegments(primary, true);
+                    // Failing workers give their segments back, pick them up
+                    joinWorkers();
+                } while (!isAborted() && hasPendingSegments());
             } catch (IOException e) {
                 Log.e(TAG, "Error downloading file", e);
-                mCallback.onFailure(isInterrupted());
+                mWorkerError = e;
             } finally {
-                mClient.disconnect();
+                if (mWorkerError != null || isInterrupted()) {
+                    abort();
+                }
+                joinWorkers();
+                if (mWatchdog != null) {
+                    mWatchdog.cancel(false);
+                }
+                if (!mClientReleased) {
+                    mClient.disconnect();
+                }
+            }
+            final int stalls = mStalls.get();
+            if (stalls > 0) {
+                Log.w(TAG, "Closed " + stalls + " stalled connections");
+                mCallback.onStalls(stalls);
+            }
+
+            if (mSegments.isEmpty()) {
+                mCallback.onFailure(isInterrupted());
+                return;
+            }
+
+            synchronized (mProgressLock) {
+                reportProgress();
+            }
+
+            final boolean completed = !isInterrupted() && mWorkerError == null && isComplete();
+            if (mJournal != null) {
+                if (completed) {
+                    mJournal.close();
+                    DownloadJournal.delete(mDestination);
+                } else {
+                    try {
+                        mJournal.flush();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not update the journal", e);
+                    }
+                    mJournal.close();
+                }
+            } else if (!completed) {
+                truncateToCompletedPrefix();
+            }
+
+            if (isInterrupted()) {
+                mCallback.onFailure(true);
+            } else if (!completed) {
+                mCallback.onFailure(false);
+            } else {
+                reportCompletion(getWrittenPrefix());
+            }
+        }
+
+        private void reportCompletion(long size) {
+            if (mDigest != null) {
+                try {
+                    mDigest.catchUp(mDestination, size);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not read back " + mDestination, e);
+                    mCallback.onFailure(isInterrupted());
+                    return;
+                }
+                if (isInterrupted()) {
+                    mCallback.onFailure(true);
+                    return;
+                }
+                if (!mDigest.matches(size)) {
+                    Log.e(TAG, "The " + mDigest.getAlgorithm() + " digest of " +
+                            mDestination + " doesn't match");
+                    mCallback.onDigestMismatch();
+                    return;
+                }
             }
+            mCallback.onSuccess();
         }
     }
 }
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.net.Network;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the central directory of a zip and the entries that are needed from it,
+ * leaving the rest of the file alone. Zips on a server are read with range requests,
+ * which allows to look into an OTA package without downloading its payload.
+ * Zip64 archives are supported.
+ */
+public final class PartialZipFile {
+
+    private static final String TAG = "PartialZipFile";
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    public static final String METADATA_PATH = "META-INF/com/android/metadata";
+
+    private static final int MAX_REDIRECTS = 5;
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy(3, 500, 4000);
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int ZIP64_MAGIC_COUNT = 0xffff;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    // OTA packages only have a handful of entries
+    private static final int MAX_CENTRAL_DIRECTORY_SIZE = 4 * 1024 * 1024;
+    // Entries are read in memory, the payload isn't meant to be one of them
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private static final Pattern CONTENT_RANGE =
+            Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+)");
+
+    private final File mFile;
+    private final Network mNetwork;
+    private URL mUrl;
+    private long mLength = -1;
+    private byte[] mComment;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return the offset of the local header of the entry, getDataOffset() tells
+         * where its data starts
+         */
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+    }
+
+    /**
+     * Read the central directory of the zip at the given url. Redirects are followed
+     * and the url they lead to is used from then on.
+     *
+     * @param network the network to use, null for the default one
+     */
+    public PartialZipFile(String url, Network network) throws IOException {
+        mFile = null;
+        mNetwork = network;
+        mUrl = new URL(url);
+        readCentralDirectory();
+    }
+
+    public PartialZipFile(File file) throws IOException {
+        mFile = file;
+        mNetwork = null;
+        mUrl = null;
+        readCentralDirectory();
+    }
+
+    /**
+     * @return the url the zip was found at, after following redirects, null for
+     * local files
+     */
+    public String getUrl() {
+        return mUrl != null ? mUrl.toString() : null;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the comment of the zip, where OTA packages keep their signature
+     */
+    public byte[] getComment() {
+        return mComment.clone();
+    }
+
+    /**
+     * @return the entry with the given name, null if there's none
+     */
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    public List<Entry> getEntries() {
+        return new ArrayList<>(mEntries.values());
+    }
+
+    /**
+     * @return the offset of the data of the given entry from the start of the zip
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Bad local header for " + entry.mName);
+        }
+        final int nameLength = header.getShort(26) & 0xffff;
+        final int extraLength = header.getShort(28) & 0xffff;
+        return entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Read the content of the given entry, inflating it if needed.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if (entry.mMethod != STORED && entry.mMethod != DEFLATED) {
+            throw new IOException(entry.mName + " uses unsupported method " + entry.mMethod);
+        }
+        if (entry.mSize > MAX_ENTRY_SIZE || entry.mCompressedSize > MAX_ENTRY_SIZE) {
+            throw new IOException(entry.mName + " is too large to be read at once");
+        }
+        ByteBuffer data = read(getDataOffset(entry), (int) entry.mCompressedSize);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return entry.mMethod == DEFLATED ? inflate(entry, bytes) : bytes;
+    }
+
+    /**
+     * @return the non-empty lines of the given text entry
+     * @throws FileNotFoundException if there's no such entry
+     */
+    public String[] readLines(String name) throws IOException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            throw new FileNotFoundException("Couldn't find " + name);
+        }
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(read(entry), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    /**
+     * @return the key-value pairs of the metadata of the OTA package
+     * @throws FileNotFoundException if the zip isn't an OTA package
+     */
+    public Map<String, String> getMetadata() throws IOException {
+        Map<String, String> metadata = new HashMap<>();
+        for (String line : readLines(METADATA_PATH)) {
+            final int separator = line.indexOf('=');
+            if (separator > 0) {
+                metadata.put(line.substring(0, separator), line.substring(separator + 1));
+            }
+        }
+        return metadata;
+    }
+
+    private static byte[] inflate(Entry entry, byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            byte[] bytes = new byte[(int) entry.mSize];
+            int count = 0;
+            while (count < bytes.length && !inflater.finished()) {
+                final int inflated = inflater.inflate(bytes, count, bytes.length - count);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                count += inflated;
+            }
+            if (count != bytes.length) {
+                throw new IOException(entry.mName + " is truncated");
+            }
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new IOException(entry.mName + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        // The end of central directory record is followed by a comment of up to 64 KiB
+        ByteBuffer tail = readTail(EOCD_SIZE + MAX_COMMENT_SIZE + ZIP64_LOCATOR_SIZE);
+        final long tailStart = mLength - tail.capacity();
+        int eocd = -1;
+        for (int i = tail.capacity() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tail.capacity()) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a zip file");
+        }
+        mComment = new byte[tail.capacity() - eocd - EOCD_SIZE];
+        slice(tail, eocd + EOCD_SIZE, mComment.length).get(mComment);
+
+        long count = tail.getShort(eocd + 10) & 0xffff;
+        long size = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+        long offset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+        final int locator = eocd - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+            ByteBuffer zip64Eocd = read(tail.getLong(locator + 8), ZIP64_EOCD_SIZE);
+            if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Bad zip64 end of central directory");
+            }
+            count = zip64Eocd.getLong(32);
+            size = zip64Eocd.getLong(40);
+            offset = zip64Eocd.getLong(48);
+        } else if (count == ZIP64_MAGIC_COUNT || size == ZIP64_MAGIC || offset == ZIP64_MAGIC) {
+            throw new IOException("Missing zip64 end of central directory");
+        }
+        if (size > MAX_CENTRAL_DIRECTORY_SIZE || offset + size > mLength) {
+            throw new IOException("Bad central directory size " + size);
+        }
+
+        // The central directory is often within what we already have
+        ByteBuffer directory;
+        if (offset >= tailStart) {
+            directory = slice(tail, (int) (offset - tailStart), (int) size);
+        } else {
+            directory = read(offset, (int) size);
+        }
+        for (long i = 0; i < count; i++) {
+            Entry entry = parseEntry(directory);
+            mEntries.put(entry.mName, entry);
+        }
+        Log.d(TAG, "Found " + mEntries.size() + " entries in " +
+                (mFile != null ? mFile : mUrl));
+    }
+
+    private static Entry parseEntry(ByteBuffer directory) throws IOException {
+        final int start = directory.position();
+        if (directory.remaining() < CENTRAL_HEADER_SIZE ||
+                directory.getInt(start) != CENTRAL_HEADER_SIGNATURE) {
+            throw new IOException("Bad central directory entry");
+        }
+        final int method = directory.getShort(start + 10) & 0xffff;
+        long compressedSize = directory.getInt(start + 20) & ZIP64_MAGIC;
+        long size = directory.getInt(start + 24) & ZIP64_MAGIC;
+        final int nameLength = directory.getShort(start + 28) & 0xffff;
+        final int extraLength = directory.getShort(start + 30) & 0xffff;
+        final int commentLength = directory.getShort(start + 32) & 0xffff;
+        long localHeaderOffset = directory.getInt(start + 42) & ZIP64_MAGIC;
+        if (directory.remaining() < CENTRAL_HEADER_SIZE + nameLength + extraLength +
+                commentLength) {
+            throw new IOException("Truncated central directory entry");
+        }
+
+        byte[] name = new byte[nameLength];
+        directory.position(start + CENTRAL_HEADER_SIZE);
+        directory.get(name);
+
+        // Only the values that don't fit in the header are in the zip64 extra field
+        int extra = directory.position();
+        final int extraEnd = extra + extraLength;
+        while (extra + 4 <= extraEnd) {
+            final int id = directory.getShort(extra) & 0xffff;
+            final int length = directory.getShort(extra + 2) & 0xffff;
+            int field = extra + 4;
+            if (id == ZIP64_EXTRA_ID) {
+                if (size == ZIP64_MAGIC) {
+                    size = directory.getLong(field);
+                    field += 8;
+                }
+                if (compressedSize == ZIP64_MAGIC) {
+                    compressedSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (localHeaderOffset == ZIP64_MAGIC) {
+                    localHeaderOffset = directory.getLong(field);
+                }
+                break;
+            }
+            extra += 4 + length;
+        }
+        directory.position(extraEnd + commentLength);
+
+        return new Entry(new String(name, StandardCharsets.UTF_8), method, compressedSize,
+                size, localHeaderOffset);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Read up to the last length bytes of the zip, which also tells its length.
+     */
+    private ByteBuffer readTail(int length) throws IOException {
+        return read(-1, length);
+    }
+
+    /**
+     * @param offset the start of the range, -1 for the end of the zip
+     */
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (mFile != null) {
+            return readFile(offset, length);
+        }
+        final String range = offset >= 0 ?
+                "bytes=" + offset + "-" + (offset + length - 1) : "bytes=-" + length;
+        for (int failures = 0; ; failures++) {
+            try {
+                return request(range, offset, length);
+            } catch (IOException e) {
+                if (!RETRY_POLICY.shouldRetry(e, failures)) {
+                    throw e;
+                }
+                final long delay = RETRY_POLICY.getDelayMillis(failures);
+                Log.d(TAG, "Range request to " + mUrl + " failed, retrying in " + delay + "ms", e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry");
+                }
+            }
+        }
+    }
+
+    private ByteBuffer readFile(long offset, int length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            mLength = file.length();
+            if (offset < 0) {
+                offset = Math.max(0, mLength - length);
+                length = (int) (mLength - offset);
+            } else if (offset + length > mLength) {
+                throw new EOFException("Range ends after the end of " + mFile);
+            }
+            byte[] data = new byte[length];
+            file.seek(offset);
+            file.readFully(data);
+            return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * @param offset the expected start of the range, -1 for a suffix range
+     */
+    private ByteBuffer request(String range, long offset, int length) throws IOException {
+        HttpURLConnection connection = connect(range);
+        try {
+            final int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new ResponseCodeException(responseCode,
+                        "Server replied with " + responseCode + " to a range request");
+            }
+            Matcher matcher = CONTENT_RANGE.matcher(
+                    String.valueOf(connection.getHeaderField("Content-Range")));
+            if (!matcher.matches()) {
+                throw new IOException("Bad Content-Range " +
+                        connection.getHeaderField("Content-Range"));
+            }
+            final long start = Long.parseLong(matcher.group(1));
+            final long end = Long.parseLong(matcher.group(2));
+            mLength = Long.parseLong(matcher.group(3));
+            if (offset >= 0 ? start != offset || end - start + 1 != length :
+                    end - start + 1 > length) {
+                throw new IOException("Unexpected range " + start + "-" + end);
+            }
+            byte[] data = new byte[(int) (end - start + 1)];
+            // Closing the response once fully read gives the connection back to the pool
+            try (InputStream inputStream = connection.getInputStream()) {
+                int read = 0;
+                while (read < data.length) {
+                    final int count = inputStream.read(data, read, data.length - read);
+                    if (count < 0) {
+                        throw new EOFException("Range ended after " + read + " bytes");
+                    }
+                    read += count;
+                }
+            }
+            return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a connection for the given range, following redirects as long as they
+     * don't downgrade to plain http.
+     */
+    private HttpURLConnection connect(String range) throws IOException {
+        for (int redirects = 0; ; redirects++) {
+            HttpURLConnection connection = ConnectionManager.open(mUrl, mNetwork);
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestProperty("Range", range);
+            final int responseCode = connection.getResponseCode();
+            if (responseCode < 300 || responseCode >= 400 ||
+                    responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return connection;
+            }
+            String location = connection.getHeaderField("Location");
+            ConnectionManager.release(connection);
+            if (location == null || redirects == MAX_REDIRECTS) {
+                throw new ResponseCodeException(responseCode,
+                        "Server replied with " + responseCode + " to " + mUrl);
+            }
+            URL url = new URL(mUrl, location);
+            if ("https".equals(mUrl.getProtocol()) && !"https".equals(url.getProtocol())) {
+                throw new IOException("Refusing to follow redirect to " + url);
+            }
+            mUrl = url;
+        }
+    }
+}
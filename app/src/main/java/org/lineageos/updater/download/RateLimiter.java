@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.os.SystemClock;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket limiting the bandwidth of the downloads it's given to. The rate can be
+ * changed at any time, also while downloads are running, and a single limiter can be
+ * shared by several downloads to cap their total bandwidth.
+ */
+public final class RateLimiter {
+
+    public static final long UNLIMITED = 0;
+
+    // Don't let reads get smaller than this, unless asked for less
+    private static final int MIN_GRANT = 16 * 1024;
+    // The bucket holds this much time worth of data at most
+    private static final long BURST_MS = 100;
+
+    private long mRate;
+    private double mTokens;
+    private long mLastRefillMillis;
+
+    /**
+     * @param bytesPerSecond the maximum rate, or UNLIMITED
+     */
+    public RateLimiter(long bytesPerSecond) {
+        mRate = bytesPerSecond;
+        mLastRefillMillis = SystemClock.elapsedRealtime();
+    }
+
+    public synchronized long getRate() {
+        return mRate;
+    }
+
+    /**
+     * Change the maximum rate, taking effect immediately.
+     *
+     * @param bytesPerSecond the maximum rate, or UNLIMITED
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        mRate = bytesPerSecond;
+        mTokens = Math.min(mTokens, getCapacity());
+        notifyAll();
+    }
+
+    private double getCapacity() {
+        return Math.max(MIN_GRANT, mRate * BURST_MS / 1000.0);
+    }
+
+    private void refill() {
+        final long millis = SystemClock.elapsedRealtime();
+        if (mRate > 0) {
+            mTokens = Math.min(getCapacity(),
+                    mTokens + (millis - mLastRefillMillis) * mRate / 1000.0);
+        }
+        mLastRefillMillis = millis;
+    }
+
+    /**
+     * Wait until some bytes can be read.
+     *
+     * @param bytes the number of bytes that the caller would like to read
+     * @return the number of bytes that can be read, between 1 and bytes. Whatever
+     *         isn't read must be given back with release()
+     */
+    synchronized int acquire(int bytes) throws InterruptedIOException {
+        final int min = Math.min(bytes, MIN_GRANT);
+        refill();
+        while (mRate > 0 && mTokens < min) {
+            long millis = (long) Math.ceil((min - mTokens) * 1000 / mRate);
+            try {
+                wait(Math.max(1, millis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            refill();
+        }
+        if (mRate <= 0) {
+            return bytes;
+        }
+        final int granted = (int) Math.min(bytes, mTokens);
+        mTokens -= granted;
+        return granted;
+    }
+
+    synchronized void release(int bytes) {
+        if (mRate > 0 && bytes > 0) {
+            mTokens = Math.min(getCapacity(), mTokens + bytes);
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+
+/**
+ * Decides which errors are worth retrying and how long to wait before doing so.
+ * Only errors that are likely to go away on their own are retried, such as
+ * connections being reset or timing out and servers being temporarily unavailable.
+ * The delay doubles with each consecutive failure, up to a maximum, and is
+ * randomized so that clients that failed together don't retry together.
+ */
+public final class RetryPolicy {
+
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int mMaxRetries;
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+
+    /**
+     * @param maxRetries how many times in a row a request can fail before giving up
+     * @param initialDelayMillis the delay before the first retry
+     * @param maxDelayMillis the maximum delay between two retries
+     */
+    public RetryPolicy(int maxRetries, long initialDelayMillis, long maxDelayMillis) {
+        mMaxRetries = maxRetries;
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param failures the number of consecutive failures before this one
+     */
+    boolean shouldRetry(IOException e, int failures) {
+        return failures < mMaxRetries && isTransient(e);
+    }
+
+    boolean shouldRetry(int responseCode, int failures) {
+        return failures < mMaxRetries && isTransient(responseCode);
+    }
+
+    /**
+     * @param failures the number of consecutive failures before this one
+     * @return a random delay between half and all of the current backoff
+     */
+    long getDelayMillis(int failures) {
+        final long backoff = mInitialDelayMillis << Math.min(failures, 30);
+        final long delay = backoff <= 0 ? mMaxDelayMillis : Math.min(backoff, mMaxDelayMillis);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    long getMaxDelayMillis() {
+        return mMaxDelayMillis;
+    }
+
+    static boolean isTransient(int responseCode) {
+        switch (responseCode) {
+            case HttpURLConnection.HTTP_CLIENT_TIMEOUT:
+            case HTTP_TOO_MANY_REQUESTS:
+            case HttpURLConnection.HTTP_INTERNAL_ERROR:
+            case HttpURLConnection.HTTP_BAD_GATEWAY:
+            case HttpURLConnection.HTTP_UNAVAILABLE:
+            case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static boolean isTransient(IOException e) {
+        if (e instanceof ResponseCodeException) {
+            return isTransient(((ResponseCodeException) e).getResponseCode());
+        }
+        if (e instanceof SocketTimeoutException) {
+            return true;
+        }
+        if (e instanceof InterruptedIOException) {
+            // Cancelled
+            return false;
+        }
+        if (e instanceof SSLHandshakeException) {
+            // Most likely a certificate that won't become valid by trying again
+            return false;
+        }
+        // Connections that dropped or couldn't be opened, responses that were cut,
+        // which includes the SSLExceptions thrown when that happens mid-record
+        return e instanceof SocketException || e instanceof UnknownHostException ||
+                e instanceof EOFException || e instanceof ProtocolException ||
+                e instanceof SSLException;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the speed of a download from the last WINDOW_SIZE samples, each being
+ * the average speed over SAMPLE_INTERVAL_MS. Samples further than OUTLIER_MADS
+ * median absolute deviations from the median are ignored, the speed is the mean of
+ * the others, with a confidence interval of CONFIDENCE_Z standard errors.
+ * The samples are kept when the download is paused, so an estimator can be given
+ * to the client resuming it to start with meaningful values. It doesn't allocate
+ * anything once created.
+ */
+public final class ThroughputEstimator {
+
+    private static final long SAMPLE_INTERVAL_MS = 500;
+    private static final int WINDOW_SIZE = 30;
+    private static final double OUTLIER_MADS = 3;
+    // Scale factor that makes the MAD an estimate of the standard deviation
+    private static final double MAD_TO_SD = 1.4826;
+    // About 95%
+    private static final double CONFIDENCE_Z = 1.96;
+    // Samples needed to tell anything about the spread
+    private static final int MIN_SAMPLES = 3;
+
+    private final long[] mSamples = new long[WINDOW_SIZE];
+    private final long[] mSorted = new long[WINDOW_SIZE];
+    private int mCount;
+    private int mNext;
+
+    private long mIntervalStartMillis = -1;
+    private long mIntervalBytes;
+
+    private long mSpeed = -1;
+    private long mLowSpeed = -1;
+    private long mHighSpeed = -1;
+
+    public ThroughputEstimator() {
+    }
+
+    /**
+     * Start a new sample. To be called when bytes start flowing after the download
+     * (re)started, so that the time it wasn't running isn't counted.
+     */
+    synchronized void start(long millis) {
+        mIntervalStartMillis = millis;
+        mIntervalBytes = 0;
+    }
+
+    synchronized void add(long bytes, long millis) {
+        if (mIntervalStartMillis < 0) {
+            start(millis);
+        }
+        mIntervalBytes += bytes;
+        final long delta = millis - mIntervalStartMillis;
+        if (delta >= SAMPLE_INTERVAL_MS) {
+            addSample(mIntervalBytes * 1000 / delta);
+            start(millis);
+        }
+    }
+
+    /**
+     * @return the estimated speed in bytes per second, -1 if not known yet
+     */
+    synchronized long getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * @return the lower bound of the speed, -1 if not known yet
+     */
+    synchronized long getLowSpeed() {
+        return mLowSpeed;
+    }
+
+    /**
+     * @return the upper bound of the speed, -1 if not known yet
+     */
+    synchronized long getHighSpeed() {
+        return mHighSpeed;
+    }
+
+    private void addSample(long speed) {
+        mSamples[mNext] = speed;
+        mNext = (mNext + 1) % WINDOW_SIZE;
+        mCount = Math.min(mCount + 1, WINDOW_SIZE);
+
+        System.arraycopy(mSamples, 0, mSorted, 0, mCount);
+        Arrays.sort(mSorted, 0, mCount);
+        final double median = median(mSorted, mCount);
+        for (int i = 0; i < mCount; i++) {
+            mSorted[i] = (long) Math.abs(mSamples[i] - median);
+        }
+        Arrays.sort(mSorted, 0, mCount);
+        final double mad = median(mSorted, mCount);
+        // With most samples equal to the median nothing stands out
+        final double limit = mad > 0 ? OUTLIER_MADS * MAD_TO_SD * mad : Double.MAX_VALUE;
+
+        int inliers = 0;
+        double sum = 0;
+        double sumSquares = 0;
+        for (int i = 0; i < mCount; i++) {
+            final long sample = mSamples[i];
+            if (Math.abs(sample - median) <= limit) {
+                inliers++;
+                sum += sample;
+                sumSquares += (double) sample * sample;
+            }
+        }
+        final double mean = sum / inliers;
+        mSpeed = Math.round(mean);
+        if (inliers < MIN_SAMPLES) {
+            mLowSpeed = -1;
+            mHighSpeed = -1;
+            return;
+        }
+        final double variance = Math.max(0,
+                (sumSquares - sum * mean) / (inliers - 1));
+        final double margin = CONFIDENCE_Z * Math.sqrt(variance / inliers);
+        mLowSpeed = Math.max(0, Math.round(mean - margin));
+        mHighSpeed = Math.round(mean + margin);
+    }
+
+    private static double median(long[] sorted, int count) {
+        if (count % 2 == 1) {
+            return sorted[count / 2];
+        }
+        return (sorted[count / 2 - 1] + sorted[count / 2]) / 2.0;
+    }
+}
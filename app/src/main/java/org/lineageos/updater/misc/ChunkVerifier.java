@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.util.Log;
+
+import org.lineageos.updater.model.ChunkManifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks a file against the chunk manifest of its update, hashing the chunks in
+ * parallel. The calling thread takes chunks like the helpers it starts in the CPU
+ * pool, so the check completes even if the pool is too busy to run any of them.
+ */
+public final class ChunkVerifier {
+
+    private static final String TAG = "ChunkVerifier";
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private final File mFile;
+    private final ChunkManifest mManifest;
+    private final AtomicInteger mNextChunk = new AtomicInteger();
+    // Guarded by this
+    private int mCompletedChunks;
+    private boolean mFailed;
+    private IOException mError;
+
+    private ChunkVerifier(File file, ChunkManifest manifest) {
+        mFile = file;
+        mManifest = manifest;
+    }
+
+    /**
+     * @return whether every chunk of the file matches the manifest
+     * @throws InterruptedIOException if the thread was interrupted meanwhile
+     */
+    public static boolean verify(File file, ChunkManifest manifest) throws IOException {
+        final long length = file.length();
+        final long chunks = (length + manifest.getChunkSize() - 1) / manifest.getChunkSize();
+        if (chunks != manifest.getChunkCount()) {
+            Log.e(TAG, file + " has " + chunks + " chunks, expected " +
+                    manifest.getChunkCount());
+            return false;
+        }
+        return new ChunkVerifier(file, manifest).verify();
+    }
+
+    private boolean verify() throws IOException {
+        final int count = mManifest.getChunkCount();
+        final int helpers = Math.min(count - 1,
+                Runtime.getRuntime().availableProcessors() - 1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < helpers; i++) {
+            futures.add(TaskExecutors.submit(TaskExecutors.Pool.CPU,
+                    TaskExecutors.Priority.HIGH, "verify chunks of " + mFile.getName(),
+                    this::verifyChunks));
+        }
+        try {
+            verifyChunks();
+            synchronized (this) {
+                // Chunks taken by helpers are being worked on, they won't take long
+                while (mCompletedChunks < count && !mFailed) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Verification of " + mFile + " interrupted");
+        } finally {
+            // Let the helpers know there's nothing left to do
+            mNextChunk.set(count);
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            // Whichever way the read that was going on failed
+            throw new InterruptedIOException("Verification of " + mFile + " interrupted");
+        }
+        synchronized (this) {
+            if (mError != null) {
+                throw mError;
+            }
+            return !mFailed;
+        }
+    }
+
+    private void verifyChunks() {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "r");
+                 FileChannel channel = file.getChannel()) {
+                int chunk;
+                while ((chunk = mNextChunk.getAndIncrement()) < mManifest.getChunkCount()) {
+                    final boolean matches = verifyChunk(channel, chunk, digest, buffer);
+                    if (!matches) {
+                        Log.e(TAG, "Chunk " + chunk + " of " + mFile + " doesn't match");
+                    }
+                    synchronized (this) {
+                        mCompletedChunks++;
+                        mFailed |= !matches;
+                        notifyAll();
+                    }
+                    if (!matches) {
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            onError(e);
+        } catch (NoSuchAlgorithmException | RuntimeException e) {
+            // Whoever waits for the chunks this was given must not wait forever
+            onError(new IOException("Could not verify " + mFile, e));
+        }
+    }
+
+    private synchronized void onError(IOException e) {
+        // Helpers are interrupted once the result is known
+        if (mError == null && !mFailed) {
+            mError = e;
+        }
+        mFailed = true;
+        notifyAll();
+    }
+
+    private boolean verifyChunk(FileChannel channel, int chunk, MessageDigest digest,
+            ByteBuffer buffer) throws IOException {
+        long position = chunk * mManifest.getChunkSize();
+        final long end = Math.min(position + mManifest.getChunkSize(), channel.size());
+        digest.reset();
+        while (position < end) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+        return Utils.toHex(digest.digest()).equalsIgnoreCase(mManifest.getDigest(chunk));
+    }
+}
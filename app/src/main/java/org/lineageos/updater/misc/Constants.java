@@ -31,10 +31,14 @@ public final class Constants {
     public static final String PREF_LAST_UPDATE_CHECK = "last_update_check";
     public static final String PREF_AUTO_UPDATES_CHECK_INTERVAL = "auto_updates_check_interval";
     public static final String PREF_AUTO_DELETE_UPDATES = "auto_delete_updates";
+    public static final String PREF_AUTO_DOWNLOAD_UPDATES = "auto_download_updates";
     public static final String PREF_AB_PERF_MODE = "ab_perf_mode";
     public static final String PREF_METERED_NETWORK_WARNING = "pref_metered_network_warning";
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
+    public static final String PREF_UPDATE_LIST_URL = "update_list_url";
+    public static final String PREF_UPDATE_LIST_ETAG = "update_list_etag";
+    public static final String PREF_UPDATE_LIST_LAST_MODIFIED = "update_list_last_modified";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
 
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.os.Build;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.download.PartialZipFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Rejects the OTA packages that would fail verification or couldn't be installed,
+ * looking only at what's at the end of the zip: the signature in its comment and
+ * the metadata. Whether the signature is valid can only be told once the whole
+ * package is there, this only checks that there's one from a trusted key.
+ */
+public final class PackagePreCheck implements DownloadClient.PackageCheck {
+
+    private static final String TAG = "PackagePreCheck";
+
+    private static final String OTA_CERTS_PATH = "/system/etc/security/otacerts.zip";
+
+    // Signature start, 0xffff and comment size, all little endian
+    private static final int FOOTER_SIZE = 6;
+
+    @Override
+    public boolean check(PartialZipFile zip) throws IOException {
+        return isSignedByTrustedKey(zip.getComment()) && isInstallable(zip);
+    }
+
+    private static boolean isSignedByTrustedKey(byte[] comment) throws IOException {
+        if (comment.length < FOOTER_SIZE ||
+                comment[comment.length - 4] != (byte) 0xff ||
+                comment[comment.length - 3] != (byte) 0xff) {
+            Log.e(TAG, "The package isn't signed");
+            return false;
+        }
+        final int signatureStart = (comment[comment.length - 6] & 0xff) |
+                ((comment[comment.length - 5] & 0xff) << 8);
+        final int commentSize = (comment[comment.length - 2] & 0xff) |
+                ((comment[comment.length - 1] & 0xff) << 8);
+        if (commentSize != comment.length || signatureStart <= FOOTER_SIZE ||
+                signatureStart > comment.length) {
+            Log.e(TAG, "Bad signature footer");
+            return false;
+        }
+        for (int i = 0; i + 3 < comment.length; i++) {
+            if (comment[i] == 0x50 && comment[i + 1] == 0x4b &&
+                    comment[i + 2] == 0x05 && comment[i + 3] == 0x06) {
+                // Recovery won't accept what could be read as another zip
+                Log.e(TAG, "End of central directory found in the comment");
+                return false;
+            }
+        }
+
+        final Collection<? extends Certificate> signers;
+        try {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            signers = factory.generateCertificates(new ByteArrayInputStream(comment,
+                    comment.length - signatureStart, signatureStart - FOOTER_SIZE));
+        } catch (CertificateException e) {
+            // Recovery has its own parser, leave it to the full verification
+            throw new IOException("Could not read the signature", e);
+        }
+        for (Certificate trusted : getTrustedCertificates()) {
+            final byte[] key = trusted.getPublicKey().getEncoded();
+            for (Certificate signer : signers) {
+                if (Arrays.equals(key, signer.getPublicKey().getEncoded())) {
+                    return true;
+                }
+            }
+        }
+        Log.e(TAG, "The package isn't signed with a trusted key");
+        return false;
+    }
+
+    private static List<Certificate> getTrustedCertificates() throws IOException {
+        List<Certificate> certificates = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(OTA_CERTS_PATH)) {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                try (InputStream inputStream = zip.getInputStream(entries.nextElement())) {
+                    certificates.add(factory.generateCertificate(inputStream));
+                }
+            }
+        } catch (CertificateException e) {
+            throw new IOException("Could not read the trusted certificates", e);
+        }
+        if (certificates.isEmpty()) {
+            throw new IOException("No trusted certificates in " + OTA_CERTS_PATH);
+        }
+        return certificates;
+    }
+
+    private static boolean isInstallable(PartialZipFile zip) throws IOException {
+        final Map<String, String> metadata;
+        try {
+            metadata = zip.getMetadata();
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "The package has no metadata");
+            return false;
+        }
+
+        String timestamp = metadata.get("post-timestamp");
+        if (timestamp != null) {
+            try {
+                if (Long.parseLong(timestamp) <=
+                        SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) {
+                    Log.e(TAG, "The package is older than/equal to the current build");
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Bad post-timestamp " + timestamp);
+                return false;
+            }
+        }
+
+        String devices = metadata.get("pre-device");
+        if (devices != null) {
+            final String device = SystemProperties.get(Constants.PROP_DEVICE);
+            List<String> supported = Arrays.asList(devices.split(","));
+            if (!supported.contains(Build.DEVICE) && !supported.contains(device)) {
+                Log.e(TAG, "The package is for " + devices);
+                return false;
+            }
+        }
+
+        String builds = metadata.get("pre-build");
+        if (builds != null && !Arrays.asList(builds.split("\\|")).contains(Build.FINGERPRINT)) {
+            Log.e(TAG, "The package applies to " + builds + ", not to the current build");
+            return false;
+        }
+        return true;
+    }
+}
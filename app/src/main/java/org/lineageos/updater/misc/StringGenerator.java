@@ -27,6 +27,10 @@ import java.util.TimeZone;
 
 public final class StringGenerator {
 
+    private static final long SECOND_IN_MILLIS = 1000;
+    private static final long MINUTE_IN_MILLIS = SECOND_IN_MILLIS * 60;
+    private static final long HOUR_IN_MILLIS = MINUTE_IN_MILLIS * 60;
+
     private StringGenerator() {
     }
 
@@ -50,9 +54,6 @@ public final class StringGenerator {
     }
 
     public static String formatETA(Context context, long millis) {
-        final long SECOND_IN_MILLIS = 1000;
-        final long MINUTE_IN_MILLIS = SECOND_IN_MILLIS * 60;
-        final long HOUR_IN_MILLIS = MINUTE_IN_MILLIS * 60;
         Resources res = context.getResources();
         if (millis >= HOUR_IN_MILLIS) {
             final int hours = (int) ((millis + 1800000) / HOUR_IN_MILLIS);
@@ -66,6 +67,36 @@ public final class StringGenerator {
         }
     }
 
+    /**
+     * Like formatETA(), with the range the ETA most likely falls in, such as
+     * "5–8 minutes left", when both of its ends are known. They're given in the unit
+     * of the upper one.
+     */
+    public static String formatETA(Context context, long millis, long minMillis,
+            long maxMillis) {
+        if (minMillis < 0 || maxMillis <= minMillis) {
+            return formatETA(context, millis);
+        }
+        final long unit;
+        final int plurals;
+        if (maxMillis >= HOUR_IN_MILLIS) {
+            unit = HOUR_IN_MILLIS;
+            plurals = R.plurals.eta_range_hours;
+        } else if (maxMillis >= MINUTE_IN_MILLIS) {
+            unit = MINUTE_IN_MILLIS;
+            plurals = R.plurals.eta_range_minutes;
+        } else {
+            unit = SECOND_IN_MILLIS;
+            plurals = R.plurals.eta_range_seconds;
+        }
+        final int min = (int) ((minMillis + unit / 2) / unit);
+        final int max = (int) ((maxMillis + unit / 2) / unit);
+        if (min >= max) {
+            return formatETA(context, millis);
+        }
+        return context.getResources().getQuantityString(plurals, max, min, max);
+    }
+
     public static Locale getCurrentLocale(Context context) {
         return context.getResources().getConfiguration().getLocales()
                 .getFirstMatch(context.getResources().getAssets().getLocales());
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The thread pools every background task of the app runs on. Each pool has a fixed
+ * number of threads, tasks that don't find an idle one wait in a queue ordered by
+ * priority and then by submission order.
+ */
+public final class TaskExecutors {
+
+    private static final String TAG = "TaskExecutors";
+
+    // Tasks that waited longer than this to start are logged with the stats of the pool
+    private static final long SLOW_START_MS = 1000;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public enum Pool {
+        // Requests, and the first connection of each download
+        NETWORK("network", 8),
+        // The additional connections of segmented downloads, which keep their thread
+        // for as long as the transfer lasts. The first connection goes on without
+        // the ones that have to wait here.
+        TRANSFER("transfer", 6),
+        // Short reads and writes, such as database updates and journal checkpoints
+        DISK("disk", 2),
+        // Copies of whole packages, which take minutes and would hold up the above
+        COPY("copy", 2),
+        CPU("cpu", Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+        private final String mName;
+        private final int mThreads;
+
+        Pool(String name, int threads) {
+            mName = name;
+            mThreads = threads;
+        }
+    }
+
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW,
+    }
+
+    public static final class Stats {
+        private final int mQueued;
+        private final int mActive;
+        private final long mCompleted;
+        private final long mAverageWaitMillis;
+        private final long mMaxWaitMillis;
+        private final long mAverageRunMillis;
+
+        private Stats(int queued, int active, long completed, long averageWaitMillis,
+                long maxWaitMillis, long averageRunMillis) {
+            mQueued = queued;
+            mActive = active;
+            mCompleted = completed;
+            mAverageWaitMillis = averageWaitMillis;
+            mMaxWaitMillis = maxWaitMillis;
+            mAverageRunMillis = averageRunMillis;
+        }
+
+        public int getQueued() {
+            return mQueued;
+        }
+
+        public int getActive() {
+            return mActive;
+        }
+
+        public long getCompleted() {
+            return mCompleted;
+        }
+
+        public long getAverageWaitMillis() {
+            return mAverageWaitMillis;
+        }
+
+        public long getMaxWaitMillis() {
+            return mMaxWaitMillis;
+        }
+
+        public long getAverageRunMillis() {
+            return mAverageRunMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "queued=%d active=%d completed=%d wait=%d/%dms run=%dms",
+                    mQueued, mActive, mCompleted, mAverageWaitMillis, mMaxWaitMillis,
+                    mAverageRunMillis);
+        }
+    }
+
+    private static final PoolExecutor[] sExecutors = new PoolExecutor[Pool.values().length];
+    private static ScheduledThreadPoolExecutor sTimer;
+
+    private TaskExecutors() {
+    }
+
+    private static synchronized PoolExecutor getExecutor(Pool pool) {
+        PoolExecutor executor = sExecutors[pool.ordinal()];
+        if (executor == null) {
+            executor = new PoolExecutor(pool);
+            sExecutors[pool.ordinal()] = executor;
+        }
+        return executor;
+    }
+
+    /**
+     * Run the task on the given pool.
+     *
+     * @param name a short description of the task, used for the thread name and logs
+     * @return a Future that can be used to cancel the task or wait for it
+     */
+    public static Future<?> submit(Pool pool, Priority priority, String name, Runnable task) {
+        Task future = new Task(priority, name, task);
+        getExecutor(pool).execute(future);
+        return future;
+    }
+
+    public static Future<?> submit(Pool pool, String name, Runnable task) {
+        return submit(pool, Priority.NORMAL, name, task);
+    }
+
+    /**
+     * Run the task every periodMillis on the timer thread, which is shared by all the
+     * periodic tasks. The task must be quick, anything slow belongs to a pool.
+     *
+     * @return a Future that can be used to stop running the task
+     */
+    public static synchronized Future<?> schedule(String name, Runnable task,
+            long periodMillis) {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sTimer.setRemoveOnCancelPolicy(true);
+        }
+        return sTimer.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Letting it through would silently cancel the next runs
+                Log.e(TAG, name + " failed", e);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static Stats getStats(Pool pool) {
+        return getExecutor(pool).getStats();
+    }
+
+    private static class Task extends FutureTask<Void> implements Comparable<Task> {
+        private static final AtomicLong sSequence = new AtomicLong();
+
+        private final Priority mPriority;
+        private final String mName;
+        private final long mSequence = sSequence.getAndIncrement();
+        private final long mSubmitMillis = SystemClock.elapsedRealtime();
+        private long mStartMillis;
+
+        private Task(Priority priority, String name, Runnable task) {
+            super(task, null);
+            mPriority = priority;
+            mName = name;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.compareTo(other.mPriority);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private static class PoolExecutor extends ThreadPoolExecutor {
+        private final Pool mPool;
+        private final AtomicLong mCompleted = new AtomicLong();
+        private final AtomicLong mTotalWaitMillis = new AtomicLong();
+        private final AtomicLong mMaxWaitMillis = new AtomicLong();
+        private final AtomicLong mTotalRunMillis = new AtomicLong();
+
+        private PoolExecutor(Pool pool) {
+            super(pool.mThreads, pool.mThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<>(), new PoolThreadFactory(pool));
+            allowCoreThreadTimeOut(true);
+            mPool = pool;
+        }
+
+        @Override
+        protected void beforeExecute(Thread thread, Runnable runnable) {
+            Task task = (Task) runnable;
+            task.mStartMillis = SystemClock.elapsedRealtime();
+            final long wait = task.mStartMillis - task.mSubmitMillis;
+            mTotalWaitMillis.addAndGet(wait);
+            mMaxWaitMillis.accumulateAndGet(wait, Math::max);
+            thread.setName(mPool.mName + ": " + task.mName);
+            if (wait > SLOW_START_MS) {
+                Log.w(TAG, task.mName + " waited " + wait + "ms in the " + mPool.mName +
+                        " pool, " + getStats());
+            }
+        }
+
+        @Override
+        protected void afterExecute(Runnable runnable, Throwable throwable) {
+            Task task = (Task) runnable;
+            mTotalRunMillis.addAndGet(SystemClock.elapsedRealtime() - task.mStartMillis);
+            mCompleted.incrementAndGet();
+            Thread.currentThread().setName(mPool.mName + ": idle");
+            if (!task.isCancelled()) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    // The Future keeps it otherwise, and nobody might be looking
+                    Log.e(TAG, task.mName + " failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private Stats getStats() {
+            final long completed = mCompleted.get();
+            final long started = completed + getActiveCount();
+            return new Stats(getQueue().size(), getActiveCount(), completed,
+                    started > 0 ? mTotalWaitMillis.get() / started : 0,
+                    mMaxWaitMillis.get(),
+                    completed > 0 ? mTotalRunMillis.get() / completed : 0);
+        }
+    }
+
+    private static class PoolThreadFactory implements ThreadFactory {
+        private final Pool mPool;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        private PoolThreadFactory(Pool pool) {
+            mPool = pool;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final String name = mPool.mName + " #" + mCount.incrementAndGet();
+            return new Thread(() -> {
+                // Keep the UI responsive while updates are being downloaded or verified
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, name);
+        }
+    }
+}
@@ -38,6 +38,8 @@ import org.json.JSONObject;
 import org.lineageos.updater.R;
 import org.lineageos.updater.UpdatesDbHelper;
 import org.lineageos.updater.controller.UpdaterService;
+import org.lineageos.updater.download.PartialZipFile;
+import org.lineageos.updater.model.ChunkManifest;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateBaseInfo;
 import org.lineageos.updater.model.UpdateInfo;
@@ -50,13 +52,10 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class Utils {
 
@@ -86,6 +85,40 @@ public class Utils {
         return new File(context.getCacheDir(), "updates.json");
     }
 
+    private static String getUpdateListValidator(Context context, String url, String key) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        // The validators are useless without the list they refer to
+        if (!getCachedUpdateList(context).exists() ||
+                !url.equals(preferences.getString(Constants.PREF_UPDATE_LIST_URL, null))) {
+            return null;
+        }
+        return preferences.getString(key, null);
+    }
+
+    /**
+     * Get the ETag of the cached updates list, if it was downloaded from the given url.
+     */
+    public static String getUpdateListETag(Context context, String url) {
+        return getUpdateListValidator(context, url, Constants.PREF_UPDATE_LIST_ETAG);
+    }
+
+    /**
+     * Get the Last-Modified date of the cached updates list, if it was downloaded
+     * from the given url.
+     */
+    public static String getUpdateListLastModified(Context context, String url) {
+        return getUpdateListValidator(context, url, Constants.PREF_UPDATE_LIST_LAST_MODIFIED);
+    }
+
+    public static void setUpdateListValidators(Context context, String url, String etag,
+            String lastModified) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Constants.PREF_UPDATE_LIST_URL, url)
+                .putString(Constants.PREF_UPDATE_LIST_ETAG, etag)
+                .putString(Constants.PREF_UPDATE_LIST_LAST_MODIFIED, lastModified)
+                .apply();
+    }
+
     private static String getVersion(String name) {
         String[] fileInfo = name.split("-");
         return fileInfo[1];
@@ -115,10 +148,84 @@ public class Utils {
         final String version = getVersion(fileName);
         update.setVersion(version);
         update.setDownloadId(object.getString("md5sum"));
+        update.setSha256(object.optString("sha256", null));
+        update.setChunkManifest(parseJsonChunks(object.optJSONObject("chunks")));
         update.setType(object.getString("type"));
         update.setFileSize(Long.valueOf(object.getInt("size")));
         update.setDownloadUrl(DOWNLOAD_URL.replace("{filename}", fileName));
-        return update;
+        UpdateInfo incremental = parseJsonIncremental(update,
+                object.optJSONArray("incrementals"),
+                SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0));
+        return incremental != null ? incremental : update;
+    }
+
+    /**
+     * Incremental packages only carry the differences between the build they're
+     * made from and the one of the full package, so they can only be installed on
+     * top of the former. They're listed along with the full package as
+     * {"source": <build date>, "name": ..., "md5sum": ..., "sha256": ..., "size": ...}
+     *
+     * @return the incremental package of the given update that applies to the build
+     * from sourceTimestamp, or null if there's none
+     */
+    private static UpdateInfo parseJsonIncremental(Update update, JSONArray incrementals,
+            long sourceTimestamp) {
+        if (incrementals == null || sourceTimestamp <= 0) {
+            return null;
+        }
+        for (int i = 0; i < incrementals.length(); i++) {
+            JSONObject object = incrementals.optJSONObject(i);
+            if (object == null || object.optLong("source", -1) != sourceTimestamp) {
+                continue;
+            }
+            try {
+                Update incremental = new Update(update);
+                final String fileName = object.getString("name");
+                incremental.setName(fileName);
+                incremental.setDownloadId(object.getString("md5sum"));
+                incremental.setSha256(object.optString("sha256", null));
+                incremental.setChunkManifest(parseJsonChunks(object.optJSONObject("chunks")));
+                incremental.setFileSize(object.getLong("size"));
+                incremental.setDownloadUrl(DOWNLOAD_URL.replace("{filename}", fileName));
+                incremental.setSourceTimestamp(sourceTimestamp);
+                return incremental;
+            } catch (JSONException e) {
+                // The full package can still be installed
+                Log.e(TAG, "Could not parse incremental of " + update.getName(), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chunk manifests are listed as {"size": <chunk size>, "sha256": [...]}, with
+     * the digests in the order of the chunks.
+     *
+     * @return the manifest, or null if there's none
+     */
+    private static ChunkManifest parseJsonChunks(JSONObject object) throws JSONException {
+        if (object == null) {
+            return null;
+        }
+        final long size = object.getLong("size");
+        if (size <= 0) {
+            throw new JSONException("Invalid chunk size " + size);
+        }
+        JSONArray array = object.getJSONArray("sha256");
+        List<String> digests = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            digests.add(array.getString(i));
+        }
+        return new ChunkManifest(size, digests);
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
     }
 
     public static boolean isCompatible(UpdateBaseInfo update) {
@@ -138,7 +245,12 @@ public class Utils {
     }
 
     public static boolean canInstall(UpdateBaseInfo update) {
-        return update.getTimestamp() > SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0) &&
+        final long buildDate = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+        if (update.getSourceTimestamp() != 0 && update.getSourceTimestamp() != buildDate) {
+            // An incremental package made for a build that isn't running anymore
+            return false;
+        }
+        return update.getTimestamp() > buildDate &&
                 update.getVersion().compareTo(SystemProperties.get(Constants.PROP_BUILD_VERSION)) >= 0;
     }
 
@@ -199,6 +311,17 @@ public class Utils {
         context.startService(intent);
     }
 
+    /**
+     * Install the given update on an A/B device straight from the server, without
+     * downloading it first.
+     */
+    public static void triggerStreamingUpdate(Context context, String downloadId) {
+        final Intent intent = new Intent(context, UpdaterService.class);
+        intent.setAction(UpdaterService.ACTION_STREAM_UPDATE);
+        intent.putExtra(UpdaterService.EXTRA_DOWNLOAD_ID, downloadId);
+        context.startService(intent);
+    }
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
         Network activeNetwork = cm.getActiveNetwork();
@@ -245,36 +368,6 @@ public class Utils {
         return false;
     }
 
-    /**
-     * Get the offset to the compressed data of a file inside the given zip
-     *
-     * @param zipFile input zip file
-     * @param entryPath full path of the entry
-     * @return the offset of the compressed, or -1 if not found
-     * @throws IllegalArgumentException if the given entry is not found
-     */
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
-            }
-            offset += entry.getCompressedSize();
-        }
-        Log.e(TAG, "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
-    }
-
     public static void removeUncryptFiles(File downloadPath) {
         File[] uncryptFiles = downloadPath.listFiles(
                 (dir, name) -> name.endsWith(Constants.UNCRYPT_FILE_EXT));
@@ -371,16 +464,13 @@ public class Utils {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
-    public static boolean isABUpdate(ZipFile zipFile) {
+    public static boolean isABUpdate(PartialZipFile zipFile) {
         return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
                 zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
     }
 
     public static boolean isABUpdate(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file);
-        boolean isAB = isABUpdate(zipFile);
-        zipFile.close();
-        return isAB;
+        return isABUpdate(new PartialZipFile(file));
     }
 
     public static boolean hasTouchscreen(Context context) {
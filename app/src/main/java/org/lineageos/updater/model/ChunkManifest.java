@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The SHA-256 of each chunk of a package, as published by the server. All the
+ * chunks have the same size, except the last one which can be shorter.
+ */
+public final class ChunkManifest {
+
+    private final long mChunkSize;
+    private final List<String> mDigests;
+
+    public ChunkManifest(long chunkSize, List<String> digests) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+        mDigests = Collections.unmodifiableList(new ArrayList<>(digests));
+    }
+
+    public long getChunkSize() {
+        return mChunkSize;
+    }
+
+    public int getChunkCount() {
+        return mDigests.size();
+    }
+
+    /**
+     * @return the SHA-256 of the given chunk, in hex
+     */
+    public String getDigest(int chunk) {
+        return mDigests.get(chunk);
+    }
+}
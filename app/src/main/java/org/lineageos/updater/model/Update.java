@@ -25,8 +25,11 @@ public class Update extends UpdateBase implements UpdateInfo {
     private File mFile;
     private int mProgress;
     private long mEta;
+    private long mMinEta = -1;
+    private long mMaxEta = -1;
     private long mSpeed;
     private int mInstallProgress;
+    private int mVerifyProgress;
     private boolean mAvailableOnline;
     private boolean mIsFinalizing;
 
@@ -40,8 +43,11 @@ public class Update extends UpdateBase implements UpdateInfo {
         mFile = update.getFile();
         mProgress = update.getProgress();
         mEta = update.getEta();
+        mMinEta = update.getMinEta();
+        mMaxEta = update.getMaxEta();
         mSpeed = update.getSpeed();
         mInstallProgress = update.getInstallProgress();
+        mVerifyProgress = update.getVerifyProgress();
         mAvailableOnline = update.getAvailableOnline();
         mIsFinalizing = update.getFinalizing();
     }
@@ -91,6 +97,24 @@ public class Update extends UpdateBase implements UpdateInfo {
         mEta = eta;
     }
 
+    @Override
+    public long getMinEta() {
+        return mMinEta;
+    }
+
+    @Override
+    public long getMaxEta() {
+        return mMaxEta;
+    }
+
+    /**
+     * Set the range the ETA most likely falls in, -1 for the ends that aren't known.
+     */
+    public void setEtaRange(long minEta, long maxEta) {
+        mMinEta = minEta;
+        mMaxEta = maxEta;
+    }
+
     @Override
     public long getSpeed() {
         return mSpeed;
@@ -109,6 +133,15 @@ public class Update extends UpdateBase implements UpdateInfo {
         mInstallProgress = progress;
     }
 
+    @Override
+    public int getVerifyProgress() {
+        return mVerifyProgress;
+    }
+
+    public void setVerifyProgress(int progress) {
+        mVerifyProgress = progress;
+    }
+
     @Override
     public boolean getAvailableOnline() {
         return mAvailableOnline;
@@ -24,6 +24,9 @@ public class UpdateBase implements UpdateBaseInfo {
     private String mType;
     private String mVersion;
     private long mFileSize;
+    private long mSourceTimestamp;
+    private String mSha256;
+    private ChunkManifest mChunkManifest;
 
     public UpdateBase() {
     }
@@ -36,6 +39,9 @@ public class UpdateBase implements UpdateBaseInfo {
         mType = update.getType();
         mVersion = update.getVersion();
         mFileSize = update.getFileSize();
+        mSourceTimestamp = update.getSourceTimestamp();
+        mSha256 = update.getSha256();
+        mChunkManifest = update.getChunkManifest();
     }
 
     @Override
@@ -100,4 +106,31 @@ public class UpdateBase implements UpdateBaseInfo {
     public void setFileSize(long fileSize) {
         mFileSize = fileSize;
     }
+
+    @Override
+    public long getSourceTimestamp() {
+        return mSourceTimestamp;
+    }
+
+    public void setSourceTimestamp(long sourceTimestamp) {
+        mSourceTimestamp = sourceTimestamp;
+    }
+
+    @Override
+    public String getSha256() {
+        return mSha256;
+    }
+
+    public void setSha256(String sha256) {
+        mSha256 = sha256;
+    }
+
+    @Override
+    public ChunkManifest getChunkManifest() {
+        return mChunkManifest;
+    }
+
+    public void setChunkManifest(ChunkManifest chunkManifest) {
+        mChunkManifest = chunkManifest;
+    }
 }
@@ -29,4 +29,21 @@ public interface UpdateBaseInfo {
     String getDownloadUrl();
 
     long getFileSize();
+
+    /**
+     * @return the build date of the build an incremental package applies to,
+     * 0 for full packages
+     */
+    long getSourceTimestamp();
+
+    /**
+     * @return the SHA-256 of the package in hex, null if the server didn't publish it
+     */
+    String getSha256();
+
+    /**
+     * @return the digests of the chunks of the package, null if the server didn't
+     * publish them
+     */
+    ChunkManifest getChunkManifest();
 }
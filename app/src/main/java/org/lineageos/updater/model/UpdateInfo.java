@@ -30,10 +30,16 @@ public interface UpdateInfo extends UpdateBaseInfo {
 
     long getEta();
 
+    long getMinEta();
+
+    long getMaxEta();
+
     long getSpeed();
 
     int getInstallProgress();
 
+    int getVerifyProgress();
+
     boolean getAvailableOnline();
 
     boolean getFinalizing();